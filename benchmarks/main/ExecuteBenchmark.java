@@ -0,0 +1,87 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole commands through {@code FlightService.execute}, from the command line to the response text,
+ * on in-process storage so that only application code is measured. Each benchmark thread is its own
+ * logged in session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ExecuteBenchmark {
+  private static final AtomicInteger users = new AtomicInteger();
+
+  private Query q;
+  // an itinerary of the day 20 search with seats on every leg
+  private String book;
+
+  @Setup
+  public void setup() throws IOException, SQLException {
+    synchronized (ExecuteBenchmark.class) {
+      if (System.getProperty(Storage.BACKEND_PROPERTY) == null) {
+        Fixtures.useMemoryStorage(2000);
+      }
+    }
+    q = new Query();
+    String user = "bench" + users.incrementAndGet();
+    FlightService.execute(q, "create " + user + " pw 100000000");
+    FlightService.execute(q, "login " + user + " pw");
+    // one reservation for the listing
+    FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 14 10");
+    FlightService.execute(q, "book 0");
+    FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 20 10");
+    for (int i = 0; book == null; i++) {
+      String booked = FlightService.execute(q, "book " + i);
+      if (booked.startsWith("Booked")) {
+        book = "book " + i;
+        FlightService.execute(q, "cancel " + reservationId(booked));
+      } else if (booked.startsWith("No such itinerary")) {
+        throw new IllegalStateException("No itinerary with seats on day 20");
+      }
+    }
+  }
+
+  private static String reservationId(String booked) {
+    return booked.substring(booked.lastIndexOf(' ') + 1).trim();
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    q.closeConnection();
+  }
+
+  @Benchmark
+  public String searchDirect() {
+    return FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 1 14 10");
+  }
+
+  @Benchmark
+  public String searchOneHop() {
+    return FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 15 10");
+  }
+
+  @Benchmark
+  public String reservations() {
+    return FlightService.execute(q, "reservations");
+  }
+
+  /**
+   * Books an itinerary of the last search and cancels it again, so that every invocation starts
+   * from the same state.
+   */
+  @Benchmark
+  public String bookAndCancel() {
+    String booked = FlightService.execute(q, book);
+    return FlightService.execute(q, "cancel " + reservationId(booked));
+  }
+}
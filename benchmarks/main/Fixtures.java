@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Flights shaped like the Flights table: real city and carrier names, a month of days, durations,
+ * capacities and prices in the ranges the data has, and a few busy hubs that most routes touch so
+ * that one-hop searches find many connections. Generated from a fixed seed, so every run and every
+ * fork sees the same flights.
+ */
+final class Fixtures {
+    static final String[] CITIES = {
+            "Seattle WA", "Boston MA", "Chicago IL", "Atlanta GA", "Dallas/Fort Worth TX", "Denver CO",
+            "Los Angeles CA", "San Francisco CA", "New York NY", "Washington DC", "Miami FL", "Phoenix AZ",
+            "Houston TX", "Minneapolis MN", "Detroit MI", "Philadelphia PA", "Charlotte NC", "Las Vegas NV",
+            "Orlando FL", "Portland OR", "Salt Lake City UT", "San Diego CA", "Baltimore MD", "Tampa FL",
+            "St. Louis MO", "Nashville TN", "Austin TX", "Kansas City MO", "Cleveland OH", "Anchorage AK"};
+    private static final String[] CARRIERS = {"AS", "AA", "DL", "UA", "WN", "B6", "NK", "F9"};
+    // Hubs are the first few cities, one leg in HUB_SHARE of flights is a hub
+    private static final int HUBS = 6;
+    private static final double HUB_SHARE = 0.6;
+    private static final int DAYS = 28;
+
+    private Fixtures() {
+    }
+
+    /**
+     * {@code perDay} flights on each day of the month, fids from 1.
+     */
+    static List<Query.Flight> flights(int perDay) {
+        Random random = new Random(344);
+        List<Query.Flight> flights = new ArrayList<>();
+        int fid = 1;
+        for (int day = 1; day <= DAYS; day++) {
+            for (int i = 0; i < perDay; i++) {
+                int origin = city(random);
+                int dest = city(random);
+                while (dest == origin) {
+                    dest = random.nextInt(CITIES.length);
+                }
+                Query.Flight f = new Query.Flight();
+                f.fid = fid++;
+                f.dayOfMonth = day;
+                f.carrierId = CARRIERS[random.nextInt(CARRIERS.length)];
+                f.flightNum = String.valueOf(1 + random.nextInt(6000));
+                f.originCity = CITIES[origin];
+                f.destCity = CITIES[dest];
+                f.time = 40 + random.nextInt(400);
+                f.capacity = random.nextInt(20);
+                f.price = 100 + random.nextInt(900);
+                flights.add(f);
+            }
+        }
+        return flights;
+    }
+
+    private static int city(Random random) {
+        return random.nextDouble() < HUB_SHARE ? random.nextInt(HUBS) : random.nextInt(CITIES.length);
+    }
+
+    /**
+     * The flights as a CSV export of the Flights table, for MemoryStorage.
+     */
+    static Path writeCsv(List<Query.Flight> flights) throws IOException {
+        Path file = Files.createTempFile("flights", ".csv");
+        file.toFile().deleteOnExit();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (Query.Flight f : flights) {
+                out.printf("%d,7,%d,1,%s,%s,\"%s\",,\"%s\",,0,0,0,0,%d,0,%d,%d%n", f.fid, f.dayOfMonth, f.carrierId,
+                        f.flightNum, f.originCity, f.destCity, f.time, f.capacity, f.price);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Starts new Query sessions on in-process storage holding {@code perDay} flights a day. Must run
+     * before the first Query of the JVM.
+     */
+    static void useMemoryStorage(int perDay) throws IOException {
+        System.setProperty(Storage.BACKEND_PROPERTY, "memory");
+        System.setProperty(MemoryStorage.FLIGHTS_PROPERTY, writeCsv(flights(perDay)).toString());
+    }
+
+    /**
+     * {@code n} itineraries, every third one with two legs.
+     */
+    static List<Query.Itinerary> itineraries(List<Query.Flight> flights, int n) {
+        Random random = new Random(7);
+        List<Query.Itinerary> itineraries = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Query.Itinerary itinerary = new Query.Itinerary();
+            itinerary.firstFlight = flights.get(random.nextInt(flights.size()));
+            if (i % 3 == 2) {
+                itinerary.secondFlight = flights.get(random.nextInt(flights.size()));
+            }
+            itineraries.add(itinerary);
+        }
+        return itineraries;
+    }
+}
@@ -0,0 +1,35 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One PBKDF2 password hash as login and create pay for it, through the hashing worker pool, and a
+ * new salt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+  private final PasswordHasher hasher = PasswordHasher.shared();
+  private byte[] salt;
+
+  @Setup
+  public void setup() {
+    salt = hasher.salt();
+  }
+
+  @Benchmark
+  public byte[] hash() {
+    return hasher.hash("correct horse battery staple", salt);
+  }
+
+  @Benchmark
+  public byte[] salt() {
+    return hasher.salt();
+  }
+}
@@ -0,0 +1,57 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Ordering and rendering of search results: sorting itineraries with {@code Itinerary.compareTo},
+ * and {@code Itinerary.toString(int)}, which renders each flight with {@code Flight.toString}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ItineraryBenchmark {
+
+  // a search shows at most a few dozen itineraries
+  @Param({"10", "50"})
+  public int count;
+
+  private Query.Itinerary[] itineraries;
+  private Query.Itinerary direct;
+  private Query.Itinerary oneHop;
+
+  @Setup
+  public void setup() {
+    List<Query.Itinerary> list = Fixtures.itineraries(Fixtures.flights(200), count);
+    itineraries = list.toArray(new Query.Itinerary[0]);
+    direct = list.get(0);
+    oneHop = list.get(2);
+  }
+
+  @Benchmark
+  public Query.Itinerary[] sort() {
+    Query.Itinerary[] copy = itineraries.clone();
+    Arrays.sort(copy);
+    return copy;
+  }
+
+  @Benchmark
+  public String renderDirect() {
+    return direct.toString(7);
+  }
+
+  @Benchmark
+  public String renderOneHop() {
+    return oneHop.toString(7);
+  }
+
+  @Benchmark
+  public String renderFlight() {
+    return direct.firstFlight.toString();
+  }
+}
@@ -0,0 +1,45 @@
+package flightapp;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Assembling a search result from the rows storage returns: merging direct and one-hop itineraries
+ * by total time and rendering them, and the in-memory lookup that produces those rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SearchBenchmark {
+
+  @Param({"5", "20"})
+  public int limit;
+
+  private MemoryStorage storage;
+  private final List<Query.Itinerary> direct = new ArrayList<>();
+  private final List<Query.Itinerary> indirect = new ArrayList<>();
+
+  @Setup
+  public void setup() throws SQLException {
+    storage = new MemoryStorage(Fixtures.flights(2000));
+    for (Query.Itinerary itinerary : storage.search("Seattle WA", "Boston MA", false, 14, limit)) {
+      (itinerary.isDirect() ? direct : indirect).add(itinerary);
+    }
+  }
+
+  @Benchmark
+  public List<Query.Itinerary> lookup() throws SQLException {
+    return storage.search("Seattle WA", "Boston MA", false, 14, limit);
+  }
+
+  @Benchmark
+  public String assemble() throws SQLException {
+    return Query.renderItineraries(direct, indirect, limit, new ArrayList<>());
+  }
+}
@@ -0,0 +1,25 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Splitting a command line into tokens, run for every command before anything else.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TokenizeBenchmark {
+
+  @Param({"search \"Seattle WA\" \"Boston MA\" 0 14 10", "book 3", "login user_3419 \"pass word\""})
+  public String command;
+
+  @Benchmark
+  public String[] tokenize() {
+    return FlightService.tokenize(command);
+  }
+}
@@ -2,9 +2,15 @@ CREATE TABLE Users (
     username varchar(20) primary key,
     passwordHash varbinary(20),
     salted varbinary(20),
-    balance int
+    balance int,
+    bookedDays int NOT NULL DEFAULT 0 -- bit d - 1 set while the user holds a reservation on day d
 );
 
+-- An existing Users table gets the column and the days of its users' uncancelled reservations with
+--   ALTER TABLE Users ADD bookedDays int NOT NULL DEFAULT 0;
+--   UPDATE Users SET bookedDays = (SELECT COALESCE(SUM(DISTINCT POWER(2, R.dayOfMonth - 1)), 0)
+--       FROM Reservations R WHERE R.username = Users.username AND R.ifcancelled = 0);
+
 CREATE TABLE Reservations (
     reserveID int primary key,
     username varchar(20) references Users,
@@ -20,6 +26,14 @@ CREATE TABLE Reservations (
 
 CREATE TABLE Remainseat (
     fid int REFERENCES Flights,
-    seats int
+    shard int, -- seats left on a flight are split over shards, the sum is what is left
+    seats int,
+    PRIMARY KEY (fid, shard)
+);
+
+-- Last reservation ID handed out, a single row so booking never counts Reservations
+CREATE TABLE ReservationIds (
+    lastID int
 );
 
+INSERT INTO ReservationIds VALUES (0);
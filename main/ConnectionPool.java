@@ -0,0 +1,296 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded pool of database connections that sessions borrow for the duration of one command.
+ *
+ * At most {@code max} connections are handed out at once. Callers beyond that wait in a fair (FIFO)
+ * queue for up to the configured timeout. The first {@code min} connections are opened up front
+ * and kept. A borrowed connection is validated before it is returned unless validation is turned
+ * off, and every physical connection caches the statements prepared on it so that sessions do not
+ * prepare them again on each borrow. Connections beyond {@code min} that sit idle for longer than
+ * the idle timeout are closed the next time a connection is borrowed or released, so the pool
+ * shrinks back after a burst.
+ */
+class ConnectionPool {
+    // Maximum number of connections, the pool is only used when this is set
+    static final String MAX_PROPERTY = "flightapp.pool.max";
+    // Connections opened when the pool starts
+    static final String MIN_PROPERTY = "flightapp.pool.min";
+    // How long a borrower waits for a free connection, in milliseconds
+    static final String WAIT_PROPERTY = "flightapp.pool.wait_ms";
+    // Whether to check a connection with isValid() before handing it out
+    static final String VALIDATE_PROPERTY = "flightapp.pool.validate";
+    // How long a connection beyond the minimum may stay idle before it is closed, in milliseconds
+    static final String IDLE_PROPERTY = "flightapp.pool.idle_ms";
+
+    private static final long DEFAULT_IDLE_MILLIS = 60_000;
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    /**
+     * Opens a new physical connection.
+     */
+    interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int min;
+    private final int max;
+    private final long waitMillis;
+    private final boolean validate;
+    private final long idleNanos;
+    private final Semaphore permits;
+    private volatile boolean closed;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong useNanos = new AtomicLong();
+
+    ConnectionPool(ConnectionFactory factory, int min, int max, long waitMillis, boolean validate) throws SQLException {
+        this(factory, min, max, waitMillis, validate, DEFAULT_IDLE_MILLIS);
+    }
+
+    ConnectionPool(ConnectionFactory factory, int min, int max, long waitMillis, boolean validate, long idleMillis)
+            throws SQLException {
+        if (max <= 0 || min < 0 || min > max) {
+            throw new IllegalArgumentException("Pool size must satisfy 0 <= min <= max and max > 0");
+        }
+        this.factory = factory;
+        this.min = min;
+        this.max = max;
+        this.waitMillis = waitMillis;
+        this.validate = validate;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.permits = new Semaphore(max, true);
+        for (int i = 0; i < min; i++) {
+            idle.add(create());
+        }
+    }
+
+    /**
+     * Returns true if a pool size was configured through {@code flightapp.pool.max}.
+     */
+    static boolean isEnabled() {
+        return Integer.getInteger(MAX_PROPERTY, 0) > 0;
+    }
+
+    /**
+     * Creates a pool sized by the {@code flightapp.pool.*} properties.
+     */
+    static ConnectionPool fromProperties(ConnectionFactory factory) throws SQLException {
+        int max = Integer.getInteger(MAX_PROPERTY, 0);
+        int min = Math.min(Integer.getInteger(MIN_PROPERTY, 1), max);
+        long wait = Long.getLong(WAIT_PROPERTY, 5000L);
+        boolean validate = Boolean.parseBoolean(System.getProperty(VALIDATE_PROPERTY, "true"));
+        long idleMillis = Long.getLong(IDLE_PROPERTY, DEFAULT_IDLE_MILLIS);
+        return new ConnectionPool(factory, min, max, wait, validate, idleMillis);
+    }
+
+    /**
+     * Waits for a free connection, in arrival order.
+     *
+     * @throws SQLException if the pool is closed, none frees up within the wait timeout or a new
+     *                      connection fails to open
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+        long start = System.nanoTime();
+        shrinkIdle(start);
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + waitMillis + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrows.incrementAndGet();
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (!validate || pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    break;
+                }
+                invalid.incrementAndGet();
+                discard(pooled);
+            }
+            if (pooled == null) {
+                pooled = create();
+            }
+            pooled.borrowedAt = System.nanoTime();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a connection back. Anything left uncommitted is rolled back first; a connection that
+     * cannot be reset, or comes back after the pool was closed, is closed instead of reused.
+     */
+    void release(PooledConnection pooled) {
+        long now = System.nanoTime();
+        useNanos.addAndGet(now - pooled.borrowedAt);
+        try {
+            if (closed) {
+                discard(pooled);
+                return;
+            }
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+            pooled.idleSince = now;
+            idle.addFirst(pooled);
+            if (closed) {
+                // close() may have drained the idle connections before this one went back
+                closeIdle();
+            } else {
+                shrinkIdle(now);
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes every idle connection and refuses further borrows. Borrowed connections are closed
+     * when they come back.
+     */
+    void close() {
+        closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /*
+     * Closes connections idle for longer than the idle timeout while more than min are open. Idle
+     * connections are reused from the front, so the ones idle longest are at the back.
+     */
+    private void shrinkIdle(long now) {
+        PooledConnection oldest;
+        while (open.get() > min && (oldest = idle.peekLast()) != null && now - oldest.idleSince > idleNanos) {
+            if (idle.removeLastOccurrence(oldest)) {
+                discard(oldest);
+            }
+        }
+    }
+
+    private PooledConnection create() throws SQLException {
+        PooledConnection pooled = new PooledConnection(factory.open());
+        open.incrementAndGet();
+        return pooled;
+    }
+
+    private void discard(PooledConnection pooled) {
+        open.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            // it is gone either way
+        }
+    }
+
+    int min() {
+        return min;
+    }
+
+    int max() {
+        return max;
+    }
+
+    // Physical connections currently open
+    int openConnections() {
+        return open.get();
+    }
+
+    int idleConnections() {
+        return idle.size();
+    }
+
+    int activeConnections() {
+        return max - permits.availablePermits();
+    }
+
+    int waitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    long borrows() {
+        return borrows.get();
+    }
+
+    long timeouts() {
+        return timeouts.get();
+    }
+
+    long invalidConnections() {
+        return invalid.get();
+    }
+
+    long totalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    long maxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    long totalUseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(useNanos.get());
+    }
+
+    /**
+     * A physical connection and the statements prepared on it.
+     */
+    static class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long borrowedAt;
+        private long idleSince = System.nanoTime();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the statement for {@code sql}, preparing it the first time and metering it under
+         * {@code name}.
+         */
+        PreparedStatement prepare(String name, String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = MeteredStatement.wrap(name, connection.prepareStatement(sql));
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package flightapp;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder events, so that slow commands can be lined up with GC pauses, socket reads
+ * and lock waits in the same recording. flightapp.jfc in the repository root turns them on with
+ * thresholds that are cheap enough to leave on.
+ *
+ * An event type that is off costs a field check per begin, end and shouldCommit, and writes nothing.
+ */
+final class Events {
+    static final String CATEGORY = "Flight App";
+
+    private Events() {
+    }
+
+    @Name("flightapp.Command")
+    @Label("Command")
+    @Description("One command run by FlightService.execute")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Command extends Event {
+        @Label("Command")
+        @Description("First word of the command, or \"other\" if it is not a known command")
+        String command;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("flightapp.Statement")
+    @Label("SQL Statement")
+    @Description("One execution of a prepared statement, until its results are read or closed")
+    @Category({CATEGORY, "SQL"})
+    @StackTrace(false)
+    static class Statement extends Event {
+        @Label("Statement")
+        String statement;
+
+        @Label("Rows")
+        @Description("Rows fetched by a query, or rows changed by an update")
+        long rows;
+    }
+
+    @Name("flightapp.Retry")
+    @Label("Retry")
+    @Description("A command that hit a deadlock or serialization conflict, retried or given up")
+    @Category(CATEGORY)
+    static class Retry extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Attempt")
+        @Description("The attempt that failed, from 1")
+        int attempt;
+
+        @Label("Error Code")
+        int errorCode;
+
+        @Label("Deadlock")
+        boolean deadlock;
+
+        @Label("Given Up")
+        boolean gaveUp;
+
+        @Label("Delay")
+        @Timespan(Timespan.MILLISECONDS)
+        long delay;
+    }
+
+    @Name("flightapp.Rollback")
+    @Label("Rollback")
+    @Description("A transaction rolled back, on a refused booking, a conflict or an error")
+    @Category({CATEGORY, "SQL"})
+    static class Rollback extends Event {
+    }
+
+    @Name("flightapp.PasswordHash")
+    @Label("Password Hash")
+    @Description("One PBKDF2 hash computed on a hasher worker")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class PasswordHash extends Event {
+        @Label("Iterations")
+        int iterations;
+
+        @Label("Queued")
+        @Description("Time the hash waited for a worker")
+        @Timespan(Timespan.NANOSECONDS)
+        long queued;
+    }
+}
@@ -0,0 +1,225 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Flight rows shared by every session in the JVM, keyed by fid.
+ *
+ * Flights do not change while the application runs, so a flight read once, by a search or by a
+ * bulk load, can be rendered again without the database. Rows are stored column-wise in int arrays
+ * with a fixed number of slots, and cities and carriers are dictionary encoded, so a cached flight
+ * costs a few dozen bytes rather than a Flight object and its strings. When every slot is taken the
+ * CLOCK algorithm picks the slot to reuse: a flight read since the hand last passed it gets a second
+ * chance.
+ */
+class FlightCatalog {
+    // Maximum number of cached flights, 0 turns the catalog off
+    static final String SIZE_PROPERTY = "flightapp.flight_catalog.size";
+
+    // Arrays per slot plus one entry of the fid map
+    private static final int BYTES_PER_SLOT = 9 * 4 + 1 + 64;
+
+    private static final FlightCatalog SHARED = new FlightCatalog(Integer.getInteger(SIZE_PROPERTY, 0));
+
+    /**
+     * Reads flights from the database, in any order, skipping fids that do not exist.
+     */
+    interface Loader {
+        List<Query.Flight> load(int[] fids) throws SQLException;
+    }
+
+    private final int capacity;
+    private final int[] fid;
+    private final int[] day;
+    private final int[] carrier;
+    private final int[] flightNum;
+    private final int[] origin;
+    private final int[] dest;
+    private final int[] time;
+    private final int[] seats;
+    private final int[] price;
+    private final boolean[] referenced;
+    private final Map<Integer, Integer> slots = new HashMap<>();
+
+    // Cities and carriers, each distinct string stored once
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    private int used;
+    private int hand;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    FlightCatalog(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        fid = new int[this.capacity];
+        day = new int[this.capacity];
+        carrier = new int[this.capacity];
+        flightNum = new int[this.capacity];
+        origin = new int[this.capacity];
+        dest = new int[this.capacity];
+        time = new int[this.capacity];
+        seats = new int[this.capacity];
+        price = new int[this.capacity];
+        referenced = new boolean[this.capacity];
+    }
+
+    /**
+     * The catalog shared by all {@code Query} instances
+     */
+    static FlightCatalog shared() {
+        return SHARED;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Returns the flight, or null if it is not cached.
+     */
+    synchronized Query.Flight get(int fid) {
+        Integer slot = slots.get(fid);
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        referenced[slot] = true;
+        return flight(slot);
+    }
+
+    /**
+     * Returns the flights with the given fids, loading the ones not cached with a single call to
+     * {@code loader}. Fids that do not exist are missing from the result.
+     */
+    Map<Integer, Query.Flight> getAll(int[] fids, Loader loader) throws SQLException {
+        Map<Integer, Query.Flight> result = new HashMap<>();
+        Set<Integer> missing = new LinkedHashSet<>();
+        synchronized (this) {
+            for (int f : fids) {
+                if (result.containsKey(f) || missing.contains(f)) {
+                    continue;
+                }
+                Integer slot = slots.get(f);
+                if (slot == null) {
+                    misses++;
+                    missing.add(f);
+                } else {
+                    hits++;
+                    referenced[slot] = true;
+                    result.put(f, flight(slot));
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            int[] load = new int[missing.size()];
+            int i = 0;
+            for (int f : missing) {
+                load[i++] = f;
+            }
+            // the database is read outside the lock, two sessions may load the same flight
+            for (Query.Flight flight : loader.load(load)) {
+                put(flight);
+                result.put(flight.fid, flight);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Caches the flight. Putting a flight that is cached already counts as a use of it, so the
+     * flights that searches keep showing are the last to be evicted.
+     */
+    synchronized void put(Query.Flight flight) {
+        if (!isEnabled()) {
+            return;
+        }
+        Integer slot = slots.get(flight.fid);
+        boolean cached = slot != null;
+        if (!cached) {
+            slot = freeSlot();
+            slots.put(flight.fid, slot);
+        }
+        fid[slot] = flight.fid;
+        day[slot] = flight.dayOfMonth;
+        carrier[slot] = stringId(flight.carrierId);
+        flightNum[slot] = Integer.parseInt(flight.flightNum.trim());
+        origin[slot] = stringId(flight.originCity);
+        dest[slot] = stringId(flight.destCity);
+        time[slot] = flight.time;
+        seats[slot] = flight.capacity;
+        price[slot] = flight.price;
+        referenced[slot] = cached;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Heap taken by the catalog when full, the slot arrays are allocated up front.
+     */
+    long estimatedBytes() {
+        return (long) capacity * BYTES_PER_SLOT;
+    }
+
+    private int freeSlot() {
+        if (used < capacity) {
+            return used++;
+        }
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        int slot = hand;
+        hand = (hand + 1) % capacity;
+        slots.remove(fid[slot]);
+        evictions++;
+        return slot;
+    }
+
+    private int stringId(String s) {
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    private Query.Flight flight(int slot) {
+        Query.Flight f = new Query.Flight();
+        f.fid = fid[slot];
+        f.dayOfMonth = day[slot];
+        f.carrierId = strings.get(carrier[slot]);
+        f.flightNum = String.valueOf(flightNum[slot]);
+        f.originCity = strings.get(origin[slot]);
+        f.destCity = strings.get(dest[slot]);
+        f.time = time[slot];
+        f.capacity = seats[slot];
+        f.price = price[slot];
+        return f;
+    }
+}
@@ -0,0 +1,267 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * In-memory index of all non-cancelled flights, loaded once per JVM.
+ *
+ * Flights are kept in primitive column arrays (one slot per flight) with city and carrier names
+ * dictionary encoded. Rows are grouped by (origin city, day) and (destination city, day), and every
+ * group is sorted by (actual_time, fid) so that top-k lookups only have to walk a prefix.
+ *
+ * Results are the same itineraries the SEARCH_N_DIRECT and SEARCH_INDIRECT queries return, in the
+ * same order, so {@code Query} can use either source interchangeably.
+ */
+public class FlightIndex {
+    // System property that turns the index on, e.g. -Dflightapp.flight_index=true
+    static final String ENABLED_PROPERTY = "flightapp.flight_index";
+
+    private static final String LOAD_FLIGHTS =
+            "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, " +
+                    "capacity, price FROM Flights WHERE canceled = 0";
+
+    private static final int[] EMPTY = new int[0];
+
+    // Column storage, indexed by row
+    private final int[] fid;
+    private final int[] day;
+    private final int[] carrier;
+    private final int[] flightNum;
+    private final int[] origin;
+    private final int[] dest;
+    private final int[] time;
+    private final int[] capacity;
+    private final int[] price;
+
+    // Dictionaries for the encoded columns
+    private final String[] cityNames;
+    private final Map<String, Integer> cityIds;
+    private final String[] carrierNames;
+
+    // (city, day) -> rows sorted by (time, fid)
+    private final Map<Long, int[]> byOrigin;
+    private final Map<Long, int[]> byDest;
+
+    private final OneHopEngine oneHop;
+
+    private FlightIndex(Builder b) {
+        int n = b.size;
+        fid = Arrays.copyOf(b.fid, n);
+        day = Arrays.copyOf(b.day, n);
+        carrier = Arrays.copyOf(b.carrier, n);
+        flightNum = Arrays.copyOf(b.flightNum, n);
+        origin = Arrays.copyOf(b.origin, n);
+        dest = Arrays.copyOf(b.dest, n);
+        time = Arrays.copyOf(b.time, n);
+        capacity = Arrays.copyOf(b.capacity, n);
+        price = Arrays.copyOf(b.price, n);
+        cityNames = b.cityNames.toArray(new String[0]);
+        cityIds = new HashMap<>(b.cityIds);
+        carrierNames = b.carrierNames.toArray(new String[0]);
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, c) -> compareRows(a, c));
+        byOrigin = group(order, origin);
+        byDest = group(order, dest);
+        oneHop = new OneHopEngine(time, fid, origin, dest, cityNames.length);
+    }
+
+    /**
+     * Returns true if the index was requested through the {@code flightapp.flight_index} property.
+     */
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Reads every non-cancelled flight through the given connection and builds the index.
+     */
+    static FlightIndex load(Connection conn) throws SQLException {
+        Builder builder = new Builder();
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(LOAD_FLIGHTS)) {
+            while (rs.next()) {
+                builder.add(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getString(5),
+                        rs.getString(6), rs.getInt(7), rs.getInt(8), rs.getInt(9));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Number of flights in the index
+     */
+    int size() {
+        return fid.length;
+    }
+
+    /**
+     * Top {@code limit} direct flights ordered by (actual_time, fid), like SEARCH_N_DIRECT.
+     */
+    List<Query.Itinerary> searchDirect(String originCity, String destCity, int dayOfMonth, int limit) {
+        List<Query.Itinerary> results = new ArrayList<>();
+        Integer from = cityIds.get(originCity);
+        Integer to = cityIds.get(destCity);
+        if (from == null || to == null || limit <= 0) {
+            return results;
+        }
+        // Walk whichever of the two groups is shorter, both share the same order
+        int[] fromRows = rows(byOrigin, from, dayOfMonth);
+        int[] toRows = rows(byDest, to, dayOfMonth);
+        boolean useFrom = fromRows.length <= toRows.length;
+        int[] candidates = useFrom ? fromRows : toRows;
+        for (int row : candidates) {
+            if (useFrom ? dest[row] == to : origin[row] == from) {
+                results.add(itinerary(row, -1));
+                if (results.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Top {@code limit} one-hop itineraries ordered by (total time, fid1, fid2), like SEARCH_INDIRECT.
+     */
+    List<Query.Itinerary> searchIndirect(String originCity, String destCity, int dayOfMonth, int limit) {
+        List<Query.Itinerary> results = new ArrayList<>();
+        Integer from = cityIds.get(originCity);
+        Integer to = cityIds.get(destCity);
+        if (from == null || to == null || limit <= 0) {
+            return results;
+        }
+        int[][] pairs = oneHop.topK(rows(byOrigin, from, dayOfMonth), rows(byDest, to, dayOfMonth), limit);
+        for (int[] pair : pairs) {
+            results.add(itinerary(pair[0], pair[1]));
+        }
+        return results;
+    }
+
+    /**
+     * Materializes the flight stored in {@code row}.
+     */
+    Query.Flight flight(int row) {
+        Query.Flight result = new Query.Flight();
+        result.fid = fid[row];
+        result.dayOfMonth = day[row];
+        result.carrierId = carrierNames[carrier[row]];
+        result.flightNum = String.valueOf(flightNum[row]);
+        result.originCity = cityNames[origin[row]];
+        result.destCity = cityNames[dest[row]];
+        result.time = time[row];
+        result.capacity = capacity[row];
+        result.price = price[row];
+        return result;
+    }
+
+    private Query.Itinerary itinerary(int firstRow, int secondRow) {
+        Query.Itinerary result = new Query.Itinerary();
+        result.firstFlight = flight(firstRow);
+        if (secondRow >= 0) {
+            result.secondFlight = flight(secondRow);
+        }
+        return result;
+    }
+
+    private int compareRows(int a, int b) {
+        int result = Integer.compare(time[a], time[b]);
+        return result != 0 ? result : Integer.compare(fid[a], fid[b]);
+    }
+
+    private Map<Long, int[]> group(Integer[] order, int[] city) {
+        Map<Long, int[]> counts = new HashMap<>();
+        for (int row : order) {
+            counts.computeIfAbsent(key(city[row], day[row]), k -> new int[1])[0]++;
+        }
+        Map<Long, int[]> groups = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+            groups.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int row : order) {
+            long key = key(city[row], day[row]);
+            groups.get(key)[counts.get(key)[0]++] = row;
+        }
+        return groups;
+    }
+
+    private static int[] rows(Map<Long, int[]> groups, int city, int dayOfMonth) {
+        return groups.getOrDefault(key(city, dayOfMonth), EMPTY);
+    }
+
+    // Any day is a valid search input, so the day takes a whole half of the key
+    private static long key(int city, int dayOfMonth) {
+        return (long) city << 32 | (dayOfMonth & 0xffffffffL);
+    }
+
+    /**
+     * Accumulates flight rows before the index is frozen.
+     */
+    static class Builder {
+        private int size;
+        private int[] fid = new int[1024];
+        private int[] day = new int[1024];
+        private int[] carrier = new int[1024];
+        private int[] flightNum = new int[1024];
+        private int[] origin = new int[1024];
+        private int[] dest = new int[1024];
+        private int[] time = new int[1024];
+        private int[] capacity = new int[1024];
+        private int[] price = new int[1024];
+
+        private final List<String> cityNames = new ArrayList<>();
+        private final Map<String, Integer> cityIds = new HashMap<>();
+        private final List<String> carrierNames = new ArrayList<>();
+        private final Map<String, Integer> carrierIds = new HashMap<>();
+
+        Builder add(int fid, int dayOfMonth, String carrierId, int flightNum, String originCity,
+                    String destCity, int time, int capacity, int price) {
+            if (size == this.fid.length) {
+                grow();
+            }
+            this.fid[size] = fid;
+            this.day[size] = dayOfMonth;
+            this.carrier[size] = encode(carrierId, carrierIds, carrierNames);
+            this.flightNum[size] = flightNum;
+            this.origin[size] = encode(originCity, cityIds, cityNames);
+            this.dest[size] = encode(destCity, cityIds, cityNames);
+            this.time[size] = time;
+            this.capacity[size] = capacity;
+            this.price[size] = price;
+            size++;
+            return this;
+        }
+
+        FlightIndex build() {
+            return new FlightIndex(this);
+        }
+
+        private void grow() {
+            int length = fid.length * 2;
+            fid = Arrays.copyOf(fid, length);
+            day = Arrays.copyOf(day, length);
+            carrier = Arrays.copyOf(carrier, length);
+            flightNum = Arrays.copyOf(flightNum, length);
+            origin = Arrays.copyOf(origin, length);
+            dest = Arrays.copyOf(dest, length);
+            time = Arrays.copyOf(time, length);
+            capacity = Arrays.copyOf(capacity, length);
+            price = Arrays.copyOf(price, length);
+        }
+
+        private static int encode(String value, Map<String, Integer> ids, List<String> names) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = names.size();
+                ids.put(value, id);
+                names.add(value);
+            }
+            return id;
+        }
+    }
+}
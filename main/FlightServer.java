@@ -0,0 +1,207 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * TCP server mode for the Flights application.
+ *
+ * Every connection is one session with its own {@code Query}. Clients send one command per line,
+ * exactly as typed into the REPL, and get back the {@code FlightService.execute} response followed
+ * by {@link #END_OF_RESPONSE}. Sessions run on virtual threads when the JVM has them and on a
+ * cached thread pool otherwise. The number of open connections and the number of commands executing
+ * at once are both capped; when the command cap is hit a command waits up to the queue timeout and
+ * then fails with "Error: server busy". A command that throws gets an error response and the
+ * session goes on.
+ *
+ * Pair with {@code -Dflightapp.pool.max} so that idle sessions do not each hold a database
+ * connection.
+ */
+public class FlightServer {
+  // Port to listen on
+  static final String PORT_PROPERTY = "flightapp.server.port";
+  // Maximum number of connected clients
+  static final String MAX_CONNECTIONS_PROPERTY = "flightapp.server.max_connections";
+  // Maximum number of commands executing at the same time
+  static final String MAX_IN_FLIGHT_PROPERTY = "flightapp.server.max_in_flight";
+  // How long a command waits for an execution slot, in milliseconds
+  static final String QUEUE_TIMEOUT_PROPERTY = "flightapp.server.queue_timeout_ms";
+
+  /**
+   * Marks the end of each response, responses themselves never contain it
+   */
+  public static final char END_OF_RESPONSE = '\u0004';
+
+  static final String BUSY = "Error: server busy\n";
+
+  /**
+   * Creates the Query backing a new session
+   */
+  interface QueryFactory {
+    Query create() throws SQLException, IOException;
+  }
+
+  private final int port;
+  private final int maxConnections;
+  private final long queueTimeoutMillis;
+  private final QueryFactory queries;
+  private final Semaphore connections;
+  private final Semaphore inFlight;
+  private final ExecutorService sessions = newSessionExecutor();
+  private volatile ServerSocket serverSocket;
+
+  public FlightServer(int port, int maxConnections, int maxInFlight, long queueTimeoutMillis, QueryFactory queries) {
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.queries = queries;
+    this.connections = new Semaphore(maxConnections);
+    this.inFlight = new Semaphore(maxInFlight, true);
+  }
+
+  /**
+   * Creates a server configured by the {@code flightapp.server.*} properties.
+   */
+  public static FlightServer fromProperties(QueryFactory queries) {
+    int port = Integer.getInteger(PORT_PROPERTY, 8414);
+    int maxConnections = Integer.getInteger(MAX_CONNECTIONS_PROPERTY, 10000);
+    int maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 64);
+    long queueTimeout = Long.getLong(QUEUE_TIMEOUT_PROPERTY, 10000L);
+    return new FlightServer(port, maxConnections, maxInFlight, queueTimeout, queries);
+  }
+
+  /**
+   * Accepts clients until {@link #stop()} is called.
+   */
+  public void serve() throws IOException {
+    try (ServerSocket server = new ServerSocket(port)) {
+      serverSocket = server;
+      System.out.println("Flights server listening on port " + server.getLocalPort());
+      while (!server.isClosed()) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (SocketException e) {
+          break; // closed by stop()
+        }
+        if (!connections.tryAcquire()) {
+          reject(socket);
+          continue;
+        }
+        sessions.execute(() -> {
+          try {
+            runSession(socket);
+          } finally {
+            connections.release();
+          }
+        });
+      }
+    } finally {
+      sessions.shutdown();
+    }
+  }
+
+  /**
+   * Stops accepting clients. Connected sessions finish on their own.
+   */
+  public void stop() throws IOException {
+    ServerSocket server = serverSocket;
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  /**
+   * The port actually bound, useful when configured with port 0
+   */
+  public int localPort() {
+    ServerSocket server = serverSocket;
+    return server == null ? -1 : server.getLocalPort();
+  }
+
+  public int maxConnections() {
+    return maxConnections;
+  }
+
+  public int connectedClients() {
+    return maxConnections - connections.availablePermits();
+  }
+
+  private void runSession(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      Query q;
+      try {
+        q = queries.create();
+      } catch (SQLException | IOException e) {
+        respond(out, "Error: cannot open session\n");
+        return;
+      }
+      try {
+        String command;
+        while ((command = in.readLine()) != null) {
+          String response = executeLimited(q, command);
+          respond(out, response);
+          if (response.equals("Goodbye\n")) {
+            break;
+          }
+        }
+      } finally {
+        q.closeConnection();
+      }
+    } catch (IOException | SQLException e) {
+      // client went away, the session is over either way
+    }
+  }
+
+  private String executeLimited(Query q, String command) {
+    try {
+      if (!inFlight.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        return BUSY;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return BUSY;
+    }
+    try {
+      return FlightService.execute(q, command);
+    } catch (RuntimeException e) {
+      // a malformed argument such as "book abc" must not end the session
+      String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+      return "Error: cannot run command: " + reason + "\n";
+    } finally {
+      inFlight.release();
+    }
+  }
+
+  private static void respond(Writer out, String response) throws IOException {
+    // responses may echo client input, which must not end the response early
+    out.write(response.replace(END_OF_RESPONSE, '?'));
+    out.write(END_OF_RESPONSE);
+    out.flush();
+  }
+
+  private static void reject(Socket socket) {
+    try (Socket s = socket; Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+      respond(out, BUSY);
+    } catch (IOException e) {
+      // nothing to tell a client that is already gone
+    }
+  }
+
+  /*
+   * Virtual threads (JDK 21+) let every session block on the database without tying up a platform
+   * thread. Looked up reflectively so the code still builds for Java 11.
+   */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+}
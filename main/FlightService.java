@@ -11,7 +11,33 @@ public class FlightService {
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
+    long start = System.nanoTime();
+    Events.Command event = new Events.Command();
+    event.begin();
     String[] tokens = tokenize(command.trim());
+    String name = tokens.length == 0 ? "" : tokens[0];
+    Metrics metrics = Metrics.shared();
+    Metrics.Command recorded = metrics.begin(name);
+    String response = null;
+    try {
+      response = run(q, tokens);
+    } finally {
+      boolean succeeded = response != null && Metrics.succeeded(name, response);
+      if (recorded != null) {
+        metrics.end(recorded, start, succeeded);
+      }
+      event.end();
+      if (event.shouldCommit()) {
+        // unknown commands are recorded as "other", like in the metrics
+        event.command = metrics.command(name).name;
+        event.succeeded = succeeded;
+        event.commit();
+      }
+    }
+    return response;
+  }
+
+  private static String run(Query q, String[] tokens) {
     String response;
 
     // empty input
@@ -110,12 +136,31 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL. With {@code --server} it serves the same commands over TCP,
+   * and with {@code --batch [file]} it runs the commands in the file (or stdin)
+   * without the menu.
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("--server")) {
+      FlightServer.fromProperties(Query::new).serve();
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--batch")) {
+      boolean stdin = args.length < 2 || args[1].equals("-");
+      Query q = new Query();
+      try (BufferedReader in = new BufferedReader(stdin ? new InputStreamReader(System.in)
+              : new FileReader(args[1]), 1 << 16)) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        batch(q, in, out);
+        out.flush();
+      }
+      q.closeConnection();
+      return;
+    }
+
     /* prepare the database connection stuff */
     Query q = new Query();
     menu(q);
@@ -130,6 +175,7 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
       // print the command options
       System.out.println();
@@ -144,9 +190,11 @@ public class FlightService {
       System.out.println("> quit");
 
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        break;
+      }
 
       // execute the given input command
       String response = execute(q, command);
@@ -157,10 +205,64 @@ public class FlightService {
     }
   }
 
+  /**
+   * Runs every command read from {@code in} back to back, writing only the
+   * responses to {@code out}, then prints a throughput and latency summary, and
+   * the per-command metrics unless they are off, to stderr. Stops at end of input
+   * or after "quit".
+   */
+  static void batch(Query q, BufferedReader in, Writer out) throws IOException {
+    long[] latencies = new long[1024];
+    int count = 0;
+    long start = System.nanoTime();
+    String command;
+    while ((command = in.readLine()) != null) {
+      long begin = System.nanoTime();
+      String response = execute(q, command);
+      long elapsed = System.nanoTime() - begin;
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = elapsed;
+      out.write(response);
+      if (response.equals("Goodbye\n")) {
+        break;
+      }
+    }
+    long total = System.nanoTime() - start;
+
+    Arrays.sort(latencies, 0, count);
+    double seconds = total / 1e9;
+    System.err.printf("%d commands in %.3f s, %.1f commands/s%n", count, seconds,
+        seconds > 0 ? count / seconds : 0.0);
+    if (count > 0) {
+      System.err.printf("latency ms: mean %.3f, p50 %.3f, p99 %.3f, max %.3f%n",
+          Arrays.stream(latencies, 0, count).average().getAsDouble() / 1e6,
+          percentile(latencies, count, 0.50) / 1e6, percentile(latencies, count, 0.99) / 1e6,
+          latencies[count - 1] / 1e6);
+    }
+    if (Metrics.shared().isEnabled()) {
+      System.err.print(Metrics.shared().dump());
+      return;
+    }
+    PasswordHasher hasher = PasswordHasher.shared();
+    if (hasher.hashes() > 0) {
+      System.err.printf("password hashes %d: mean %.1f ms, max %.1f ms, queued mean %.1f ms, max queue %d, rejected %d%n",
+          hasher.hashes(), hasher.meanHashNanos() / 1e6, hasher.maxHashNanos() / 1e6,
+          hasher.meanWaitNanos() / 1e6, hasher.maxQueueDepth(), hasher.rejected());
+    }
+  }
+
+  // nearest-rank percentile of the first count sorted values
+  private static long percentile(long[] sorted, int count, double p) {
+    int rank = (int) Math.ceil(p * count);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
+  static String[] tokenize(String command) {
     String regex = "\"([^\"]*)\"|(\\S+)";
     Matcher m = Pattern.compile(regex).matcher(command);
     List<String> tokens = new ArrayList<>();
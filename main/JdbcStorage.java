@@ -0,0 +1,843 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+/**
+ * Storage in the SQL Server database, one instance per session.
+ *
+ * The session either has its own connection or, with -Dflightapp.pool.max set, borrows one from
+ * the shared pool for each call and binds the canned statements to it. Reads run at the isolation
+ * chosen by -Dflightapp.read_isolation, writes serializable and under the retry policy.
+ */
+class JdbcStorage implements Storage {
+    // DB Connection, borrowed from the pool for the duration of one call when pooling is on
+    private Connection conn;
+    private static ConnectionPool pool;
+    private ConnectionPool.PooledConnection pooled;
+
+    // Optional in-memory flight index shared by all sessions, see FlightIndex
+    private static volatile FlightIndex flightIndex;
+
+    // Optional cache of flight rows shared by all sessions, see FlightCatalog
+    private static final FlightCatalog flightCatalog = FlightCatalog.shared();
+
+    // Write transactions that lose a conflict are re-run under this policy
+    private static final RetryPolicy retries = RetryPolicy.shared();
+
+    // Isolation of the read-only calls (search, reservations, login), see readIsolation
+    private static final int READ_ISOLATION = readIsolation(System.getProperty("flightapp.read_isolation", "serializable"));
+    // Isolation of the calls that write
+    private static final int WRITE_ISOLATION = Connection.TRANSACTION_SERIALIZABLE;
+
+    // Canned queries
+    private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
+    private PreparedStatement checkFlightCapacityStatement;
+
+    // For check dangling, only run in debug mode
+    private static final boolean CHECK_TRANCOUNT = Boolean.getBoolean("flightapp.debug.trancount");
+    private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
+    private PreparedStatement tranCountStatement;
+
+    // Clear Tables
+    private static final String CLEAR = "DELETE FROM Remainseat; DELETE FROM Reservations; DELETE FROM Users; "
+            + "UPDATE ReservationIds SET lastID = 0;";
+    private PreparedStatement clearTables;
+
+    // Create users
+    private static final String CREATE_USER =
+            "INSERT INTO Users (username, passwordHash, salted, balance, bookedDays) VALUES(?, ?, ?, ?, 0)";
+    private PreparedStatement create_user;
+
+    // Find users
+    private static final String FIND_USER = "SELECT * FROM Users WHERE username = ?";
+    private PreparedStatement find_user;
+
+    // Search direct flights
+    private static final String SEARCH_N_DIRECT =
+            "SELECT TOP(?) fid, day_of_month, carrier_id, flight_num, " +
+                    "origin_city, dest_city, actual_time, " +
+                    "capacity, price "
+                    + "FROM Flights" + " WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? " +
+                    " AND canceled = 0 "  + " ORDER BY actual_time ASC, fid ASC;";
+    private PreparedStatement search_n_direct;
+
+    // Search one-hop flight
+    private static final String SEARCH_INDIRECT =
+            "SELECT TOP (?) F1.fid AS fid1 , F1.day_of_month AS day1, F1.carrier_id AS carrierid1, " +
+                    "F1.flight_num AS flightnum1, F1.origin_city AS origincity1, F1.dest_city AS destcity1, " +
+                    "F1.actual_time AS time1, F1.capacity AS capacity1, F1.price AS price1, "
+                    + "F2.fid AS fid2, F2.day_of_month AS day2, F2.carrier_id as carrierid2, " +
+                    "F2.flight_num AS flightnum2, F2.origin_city AS origincity2, F2.dest_city AS destcity2, " +
+                    "F2.actual_time AS time2, F2.capacity AS capacity2, F2.price AS price2 "
+                    + "FROM Flights F1, Flights F2 "
+                    + "WHERE F1.canceled <> 1 AND F2.canceled <> 1 AND F1.origin_city = ? AND F1.dest_city = F2.origin_city "
+                    + "AND F2.dest_city = ? AND F1.day_of_month = ? AND F1.day_of_month = F2.day_of_month "
+                    + "ORDER BY (F1.actual_time + F2.actual_time) ASC, fid1 ASC, fid2 ASC";
+    private PreparedStatement search_indirect;
+
+    // Marks an unpaid reservation paid and returns its cost, no row if there is none
+    private static final String MARK_PAID = "UPDATE Reservations SET ifpaid = 1 OUTPUT inserted.cost "
+            + "WHERE reserveID = ? AND username = ? AND ifpaid = 0 AND ifcancelled = 0";
+    private PreparedStatement mark_paid;
+
+    // Marks a reservation cancelled and returns what cancelling has to undo, no row if there is none
+    private static final String MARK_CANCELLED = "UPDATE Reservations SET ifcancelled = 1, ifpaid = 0 "
+            + "OUTPUT deleted.ifpaid, deleted.cost, deleted.ifdirect, deleted.fid1, deleted.fid2, deleted.dayOfMonth "
+            + "WHERE reserveID = ? AND username = ? AND ifcancelled = 0";
+    private PreparedStatement mark_cancelled;
+
+    // Reservation IDs come from the ReservationIds counter, see ReservationIdAllocator
+    private static final ReservationIdAllocator reservationIds = ReservationIdAllocator.shared();
+    private PreparedStatement next_reserveid;
+
+    private static final String ADD_RESERVE = "INSERT INTO Reservations VALUES(?,?,?,?,?,?,?,?,?,?)";
+    private PreparedStatement add_reserve;
+
+    // Sets the user's bit for a day in Users.bookedDays, no row if it was already set
+    private static final String CLAIM_DAY =
+            "UPDATE Users SET bookedDays = bookedDays | ? WHERE username = ? AND (bookedDays & ?) = 0";
+    private PreparedStatement claim_day;
+
+    // A user's reservations with both legs joined in, the flight columns laid out like SEARCH_INDIRECT
+    // so that getFlight reads them
+    private static final String All_RESERVATION =
+            "SELECT F1.fid, F1.day_of_month, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city, "
+                    + "F1.actual_time, F1.capacity, F1.price, "
+                    + "F2.fid, F2.day_of_month, F2.carrier_id, F2.flight_num, F2.origin_city, F2.dest_city, "
+                    + "F2.actual_time, F2.capacity, F2.price, "
+                    + "R.reserveID, R.ifpaid, R.ifdirect "
+                    + "FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT JOIN Flights F2 ON F2.fid = R.fid2 "
+                    + "WHERE R.username = ? AND R.ifcancelled = 0 ORDER BY R.reserveID";
+    private PreparedStatement all_reservation;
+
+    // A user's reservations without the flights, for when they come from the flight catalog
+    private static final String RESERVATION_ROWS = "SELECT reserveID, ifpaid, ifdirect, fid1, fid2 FROM Reservations "
+            + "WHERE username = ? AND ifcancelled = 0 ORDER BY reserveID";
+    private PreparedStatement reservation_rows;
+
+    // Flights whose fids are in a comma separated list
+    private static final String FLIGHTS_BY_FID = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+            + "dest_city, actual_time, capacity, price FROM Flights "
+            + "WHERE fid IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+    private PreparedStatement flights_by_fid;
+
+    private static final String CHECK_BALANCE = "SELECT balance FROM Users WHERE username = ?";
+    private PreparedStatement check_balance;
+
+    // Charges ? if the balance covers it and returns the new balance, no row otherwise
+    private static final String CHARGE = "UPDATE Users SET balance = balance - ? OUTPUT inserted.balance "
+            + "WHERE username = ? AND balance >= ?";
+    private PreparedStatement charge;
+
+    // Refunds ? (0 if the reservation was not paid) and frees the reservation's day
+    private static final String REFUND =
+            "UPDATE Users SET balance = balance + ?, bookedDays = bookedDays & ~? WHERE username = ?";
+    private PreparedStatement refund;
+
+    // Seats left on a flight are split over this many Remainseat rows (shards), the sum is what is left
+    private static final int SEAT_SHARDS = Math.max(1, Integer.getInteger("flightapp.seat_shards", 1));
+
+    private static final String INSERT_SEATS = "INSERT INTO Remainseat VALUES(?,?,?)";
+    private PreparedStatement insert_seats;
+
+    private static final String CHECK_SEATS = "SELECT shard, seats FROM Remainseat WHERE fid = ?";
+    private PreparedStatement check_seats;
+
+    private static final String TAKE_SEAT = "UPDATE Remainseat SET seats = seats - 1 WHERE fid = ? AND shard = ? AND seats > 0";
+    private PreparedStatement take_seat;
+
+    private static final String RETURN_SEAT = "UPDATE Remainseat SET seats = seats + 1 WHERE fid = ? AND shard = ?";
+    private PreparedStatement return_seat;
+
+    private static final String RETURN_ANY_SEAT = "UPDATE TOP (1) Remainseat SET seats = seats + 1 WHERE fid = ?";
+    private PreparedStatement return_any_seat;
+
+    // Books in one round trip instead of one per statement, see bookBatched
+    private static final boolean BATCH_BOOKING = Boolean.getBoolean("flightapp.batch_booking");
+
+    // Same steps in the same order as book, as a single T-SQL batch. Selects the new reservation ID, -1 if a flight is
+    // full or -2 if the user already has a reservation that day.
+    private static final String BOOK_BATCH = "SET XACT_ABORT ON; "
+            + "DECLARE @user varchar(20) = ?, @itid int = ?, @day int = ?, @cost int = ?, @shard int = ?, "
+            + "@fid1 int = ?, @cap1 int = ?, @fid2 int = ?, @cap2 int = ?, @rid int = ?, @i int, @n int; "
+            + "BEGIN TRANSACTION; "
+            + "UPDATE Users SET bookedDays = bookedDays | POWER(2, @day - 1) "
+            + "WHERE username = @user AND (bookedDays & POWER(2, @day - 1)) = 0; "
+            + "IF @@ROWCOUNT = 0 BEGIN ROLLBACK; SELECT -2; RETURN; END; "
+            + takeSeatSql("@fid1", "@cap1")
+            + "IF @fid2 IS NOT NULL BEGIN " + takeSeatSql("@fid2", "@cap2") + "END; "
+            + "IF @rid IS NULL UPDATE ReservationIds SET @rid = lastID = lastID + 1; "
+            + "INSERT INTO Reservations VALUES (@rid, @user, @itid, CASE WHEN @fid2 IS NULL THEN 1 ELSE 0 END, "
+            + "@fid1, @fid2, @cost, 0, 0, @day); "
+            + "COMMIT; SELECT @rid;";
+    private PreparedStatement book_batch;
+
+    /**
+     * One call's work on the bound connection.
+     */
+    private interface Work<T> {
+        T run() throws SQLException;
+    }
+
+    JdbcStorage(String serverURL, String dbName, String adminName, String password)
+            throws SQLException, IOException {
+        if (ConnectionPool.isEnabled()) {
+            createPool(() -> {
+                try {
+                    return serverURL == null ? Query.openConnectionFromDbConn()
+                            : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+                } catch (IOException e) {
+                    throw new SQLException("Cannot read dbconn.properties", e);
+                }
+            });
+        } else {
+            conn = serverURL == null ? Query.openConnectionFromDbConn()
+                    : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+            prepareStatements();
+        }
+        if (FlightIndex.isEnabled() && flightIndex == null) {
+            if (pool != null) {
+                ConnectionPool.PooledConnection loader = pool.borrow();
+                try {
+                    loadFlightIndex(loader.connection);
+                } finally {
+                    pool.release(loader);
+                }
+            } else {
+                loadFlightIndex(conn);
+            }
+        }
+    }
+
+    /**
+     * Starts the shared connection pool with the first session's credentials.
+     */
+    private static synchronized void createPool(ConnectionPool.ConnectionFactory factory) throws SQLException {
+        if (pool == null) {
+            pool = ConnectionPool.fromProperties(factory);
+        }
+    }
+
+    /**
+     * The shared connection pool, or null if every session has its own connection
+     */
+    static ConnectionPool connectionPool() {
+        return pool;
+    }
+
+    /**
+     * Loads the flight index the first time any session asks for it.
+     */
+    private static synchronized void loadFlightIndex(Connection conn) throws SQLException {
+        if (flightIndex == null) {
+            flightIndex = FlightIndex.load(conn);
+        }
+    }
+
+    /**
+     * Maps {@code flightapp.read_isolation} to a JDBC level. "snapshot" needs ALLOW_SNAPSHOT_ISOLATION
+     * on the database; "read_committed" reads row versions when READ_COMMITTED_SNAPSHOT is on and
+     * takes short shared locks otherwise. Anything else keeps the reads serializable.
+     */
+    static int readIsolation(String name) {
+        switch (name.toLowerCase()) {
+            case "snapshot":
+                return SQLServerConnection.TRANSACTION_SNAPSHOT;
+            case "read_committed":
+                return Connection.TRANSACTION_READ_COMMITTED;
+            default:
+                return Connection.TRANSACTION_SERIALIZABLE;
+        }
+    }
+
+    /**
+     * The session's own connection, null with pooling on unless a call is running.
+     */
+    Connection connection() {
+        return conn;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (conn != null && pool == null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Runs one call at the given isolation level. With pooling on, a connection is borrowed for the
+     * call and the canned statements are bound to it.
+     */
+    private <T> T withConnection(int isolation, Work<T> work) throws SQLException {
+        if (pool == null) {
+            return run(isolation, work);
+        }
+        pooled = pool.borrow();
+        try {
+            conn = pooled.connection;
+            prepareStatements();
+            return run(isolation, work);
+        } finally {
+            pool.release(pooled);
+            pooled = null;
+            conn = null;
+        }
+    }
+
+    private <T> T run(int isolation, Work<T> work) throws SQLException {
+        setIsolation(isolation);
+        try {
+            return work.run();
+        } finally {
+            checkDanglingTransaction();
+        }
+    }
+
+    /*
+     * The driver remembers the connection's level, so this only costs a round trip when it changes.
+     */
+    private void setIsolation(int isolation) throws SQLException {
+        if (conn.getTransactionIsolation() != isolation) {
+            conn.setTransactionIsolation(isolation);
+        }
+    }
+
+    /*
+     * prepare all the SQL statements in this method.
+     */
+    private void prepareStatements() throws SQLException {
+        checkFlightCapacityStatement = prepare("check_flight_capacity", CHECK_FLIGHT_CAPACITY);
+        tranCountStatement = prepare("tran_count", TRANCOUNT_SQL);
+        clearTables = prepare("clear_tables", CLEAR);
+        create_user = prepare("create_user", CREATE_USER);
+        find_user = prepare("find_user", FIND_USER);
+        search_n_direct = prepare("search_n_direct", SEARCH_N_DIRECT);
+        search_indirect = prepare("search_indirect", SEARCH_INDIRECT);
+        mark_paid = prepare("mark_paid", MARK_PAID);
+        mark_cancelled = prepare("mark_cancelled", MARK_CANCELLED);
+        next_reserveid = prepare("next_reserveid", ReservationIdAllocator.NEXT_RESERVEID);
+        add_reserve = prepare("add_reserve", ADD_RESERVE);
+        check_balance = prepare("check_balance", CHECK_BALANCE);
+        charge = prepare("charge", CHARGE);
+        refund = prepare("refund", REFUND);
+        check_seats = prepare("check_seats", CHECK_SEATS);
+        take_seat = prepare("take_seat", TAKE_SEAT);
+        return_seat = prepare("return_seat", RETURN_SEAT);
+        return_any_seat = prepare("return_any_seat", RETURN_ANY_SEAT);
+        insert_seats = prepare("insert_seats", INSERT_SEATS);
+        all_reservation = prepare("all_reservation", All_RESERVATION);
+        reservation_rows = prepare("reservation_rows", RESERVATION_ROWS);
+        flights_by_fid = prepare("flights_by_fid", FLIGHTS_BY_FID);
+        claim_day = prepare("claim_day", CLAIM_DAY);
+        book_batch = prepare("book_batch", BOOK_BATCH);
+    }
+
+    private PreparedStatement prepare(String name, String sql) throws SQLException {
+        return pooled != null ? pooled.prepare(name, sql) : MeteredStatement.wrap(name, conn.prepareStatement(sql));
+    }
+
+    @Override
+    public void clear() throws SQLException {
+        withConnection(WRITE_ISOLATION, () -> {
+            clearTables.executeUpdate();
+            reservationIds.reset();
+            return null;
+        });
+    }
+
+    @Override
+    public User findUser(String username) throws SQLException {
+        return withConnection(READ_ISOLATION, () -> {
+            find_user.setString(1, username);
+            try (ResultSet user = find_user.executeQuery()) {
+                if (!user.next()) {
+                    return null;
+                }
+                return new User(user.getBytes("salted"), user.getBytes("passwordHash"), user.getInt("bookedDays"));
+            }
+        });
+    }
+
+    @Override
+    public boolean userExists(String username) throws SQLException {
+        return withConnection(READ_ISOLATION, () -> {
+            find_user.setString(1, username);
+            try (ResultSet user = find_user.executeQuery()) {
+                return user.next();
+            }
+        });
+    }
+
+    /*
+     * A name taken by another session since userExists shows as a key violation, which is not retried.
+     */
+    @Override
+    public boolean createUser(String username, byte[] salt, byte[] hash, int balance) throws SQLException {
+        return withConnection(WRITE_ISOLATION, () -> retries.run("create", () -> {
+            try (Transaction tx = Transaction.begin(conn)) {
+                create_user.clearParameters();
+                create_user.setString(1, username);
+                create_user.setBytes(2, hash);
+                create_user.setBytes(3, salt);
+                create_user.setInt(4, balance);
+                create_user.executeUpdate();
+                tx.commit();
+                return true;
+            } catch (SQLException e) {
+                if (e.getErrorCode() == 2627 || e.getErrorCode() == 2601) {
+                    return false;
+                }
+                throw e;
+            }
+        }));
+    }
+
+    @Override
+    public List<Query.Itinerary> search(String originCity, String destCity, boolean directOnly, int dayOfMonth,
+                                        int limit) throws SQLException {
+        FlightIndex index = flightIndex;
+        if (index != null) {
+            List<Query.Itinerary> results = index.searchDirect(originCity, destCity, dayOfMonth, limit);
+            if (!directOnly && results.size() < limit) {
+                results.addAll(index.searchIndirect(originCity, destCity, dayOfMonth, limit - results.size()));
+            }
+            return results;
+        }
+        return withConnection(READ_ISOLATION, () -> {
+            List<Query.Itinerary> results = new ArrayList<>();
+            searchAndStoreFlights(search_n_direct, results, originCity, destCity, dayOfMonth, limit, true);
+            if (!directOnly && results.size() < limit) {
+                searchAndStoreFlights(search_indirect, results, originCity, destCity, dayOfMonth,
+                        limit - results.size(), false);
+            }
+            return results;
+        });
+    }
+
+    private void searchAndStoreFlights(PreparedStatement searchStatement, List<Query.Itinerary> searchFlightsResults, String originCity, String destCity, int dayOfMonth,
+                                       int numberOfItineraries, boolean directFlight) throws SQLException {
+        searchStatement.clearParameters();
+        searchStatement.setInt(1, numberOfItineraries);
+        searchStatement.setString(2, originCity);
+        searchStatement.setString(3, destCity);
+        searchStatement.setInt(4, dayOfMonth);
+        try (ResultSet searchResult = searchStatement.executeQuery()) {
+            while (searchResult.next()) {
+                searchFlightsResults.add(getItinerary(searchResult, directFlight));
+            }
+        }
+    }
+
+ /* fid, day_of_month, carrier_id, flight_num, " +
+          "origin_city, dest_city, actual_time, " +
+          "capacity, price " */
+
+    private static Query.Flight getFlight(ResultSet resultSet, boolean directFlight) throws SQLException{
+        Query.Flight result = new Query.Flight();
+        int index = 1;
+        if (!directFlight) {
+            index = 10;
+        }
+        result.fid = resultSet.getInt(index);
+        result.dayOfMonth = resultSet.getInt(index+1);
+        result.carrierId = resultSet.getString(index+2);
+        result.flightNum = resultSet.getString(index+3);
+        result.originCity = resultSet.getString(index+4);
+        result.destCity = resultSet.getString(index+5);
+        result.time = resultSet.getInt(index+6);
+        result.capacity = resultSet.getInt(index+7);
+        result.price = resultSet.getInt(index+8);
+        return result;
+    }
+
+    private static Query.Itinerary getItinerary(ResultSet resultSet, boolean directFlight) throws SQLException {
+        Query.Itinerary result = new Query.Itinerary();
+        result.firstFlight = getFlight(resultSet, true);
+        if (!directFlight) {
+            result.secondFlight = getFlight(resultSet, false);
+        }
+        return result;
+    }
+
+    @Override
+    public int book(String username, int itineraryId, int dayOfMonth, int cost, int fid1, int capacity1, int fid2,
+                    int capacity2) throws SQLException {
+        return withConnection(WRITE_ISOLATION, () -> {
+            if (BATCH_BOOKING) {
+                return retries.run("book", () -> bookBatched(username, itineraryId, dayOfMonth, cost, fid1,
+                        capacity1, fid2, capacity2));
+            }
+            return retries.run("book", () -> {
+                reservationIds.prefetch(next_reserveid);
+                try (Transaction tx = Transaction.begin(conn)) {
+                    // claimed before any seat is taken, so a refused booking does no seat work
+                    int dayBit = SessionStore.Session.dayBit(dayOfMonth);
+                    claim_day.setInt(1, dayBit);
+                    claim_day.setString(2, username);
+                    claim_day.setInt(3, dayBit);
+                    if (claim_day.executeUpdate() == 0) {
+                        return SAME_DAY;
+                    }
+
+                    int shard = seatShard(username);
+                    if (!takeSeat(fid1, capacity1, shard)) {
+                        return FLIGHT_FULL;
+                    }
+
+                    add_reserve.clearParameters();
+                    add_reserve.setString(2, username);
+                    add_reserve.setInt(3, itineraryId);
+                    add_reserve.setInt(5, fid1);
+                    add_reserve.setInt(7, cost);
+                    add_reserve.setInt(10, dayOfMonth);
+
+                    // handle indirect flight
+                    int boo = 1;
+                    if (fid2 >= 0) {
+                        boo = 0;
+                        if (!takeSeat(fid2, capacity2, shard)) {
+                            return FLIGHT_FULL;
+                        }
+                        add_reserve.setInt(6, fid2);
+                    } else {
+                        add_reserve.setNull(6, Types.INTEGER);
+                    }
+
+                    // Taken last so the counter row stays locked as briefly as possible
+                    int reserveid = reservationIds.next(next_reserveid);
+                    add_reserve.setInt(1, reserveid);
+                    add_reserve.setInt(4, boo);
+                    add_reserve.setInt(8, 0);
+                    add_reserve.setInt(9, 0);
+                    add_reserve.executeUpdate();
+                    tx.commit();
+                    return reserveid;
+                }
+            });
+        });
+    }
+
+    /*
+     * The whole booking as one statement on the server: the same-day claim, the seats, the
+     * reservation ID and the insert run in one transaction for a single round trip. Block mode
+     * reservation IDs are taken here from the prefetched block, strict ones inside the batch.
+     */
+    private int bookBatched(String user, int itineraryId, int dayOfMonth, int cost, int fid1, int capacity1,
+                            int fid2, int capacity2) throws SQLException {
+        reservationIds.prefetch(next_reserveid);
+        book_batch.clearParameters();
+        book_batch.setString(1, user);
+        book_batch.setInt(2, itineraryId);
+        book_batch.setInt(3, dayOfMonth);
+        book_batch.setInt(4, cost);
+        book_batch.setInt(5, seatShard(user));
+        book_batch.setInt(6, fid1);
+        book_batch.setInt(7, capacity1);
+        if (fid2 < 0) {
+            book_batch.setNull(8, Types.INTEGER);
+            book_batch.setNull(9, Types.INTEGER);
+        } else {
+            book_batch.setInt(8, fid2);
+            book_batch.setInt(9, capacity2);
+        }
+        if (reservationIds.isStrict()) {
+            book_batch.setNull(10, Types.INTEGER);
+        } else {
+            book_batch.setInt(10, reservationIds.next(next_reserveid));
+        }
+
+        // skip the update counts of the statements before the final SELECT
+        boolean isResultSet = book_batch.execute();
+        while (!isResultSet && book_batch.getUpdateCount() != -1) {
+            isResultSet = book_batch.getMoreResults();
+        }
+        if (!isResultSet) {
+            throw new SQLException("Booking batch returned no result");
+        }
+        try (ResultSet rs = book_batch.getResultSet()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /*
+     * T-SQL taking one seat of flight {@code fid} for BOOK_BATCH, like takeSeat: creates the
+     * flight's shards if it has none, then tries the preferred shard and any other shard, and rolls
+     * back the booking with -1 if all are empty. @@ROWCOUNT is saved right away because IF resets it.
+     */
+    private static String takeSeatSql(String fid, String capacity) {
+        return "IF NOT EXISTS (SELECT * FROM Remainseat WITH (UPDLOCK, HOLDLOCK) WHERE fid = " + fid + ") "
+                + "BEGIN SET @i = 0; WHILE @i < " + SEAT_SHARDS + " BEGIN "
+                + "INSERT INTO Remainseat VALUES (" + fid + ", @i, " + capacity + " / " + SEAT_SHARDS
+                + " + CASE WHEN @i < " + capacity + " % " + SEAT_SHARDS + " THEN 1 ELSE 0 END); "
+                + "SET @i = @i + 1; END; END; "
+                + "UPDATE Remainseat SET seats = seats - 1 WHERE fid = " + fid + " AND shard = @shard AND seats > 0; "
+                + "SET @n = @@ROWCOUNT; "
+                + "IF @n = 0 BEGIN UPDATE TOP (1) Remainseat SET seats = seats - 1 WHERE fid = " + fid
+                + " AND seats > 0; SET @n = @@ROWCOUNT; END; "
+                + "IF @n = 0 BEGIN ROLLBACK; SELECT -1; RETURN; END; ";
+    }
+
+    @Override
+    public Payment pay(String username, int reservationId) throws SQLException {
+        return withConnection(WRITE_ISOLATION, () -> retries.run("pay", () -> {
+            int cost;
+            try (Transaction tx = Transaction.begin(conn)) {
+                mark_paid.setInt(1, reservationId);
+                mark_paid.setString(2, username);
+                try (ResultSet paid = mark_paid.executeQuery()) {
+                    if (!paid.next()) {
+                        return Payment.notFound();
+                    }
+                    cost = paid.getInt("cost");
+                }
+
+                charge.setInt(1, cost);
+                charge.setString(2, username);
+                charge.setInt(3, cost);
+                try (ResultSet charged = charge.executeQuery()) {
+                    if (charged.next()) {
+                        int remain = charged.getInt("balance");
+                        tx.commit();
+                        return Payment.paid(remain);
+                    }
+                }
+            }
+
+            // not enough money and rolled back, only now is the balance worth reading
+            int balance = 0;
+            check_balance.setString(1, username);
+            try (ResultSet result = check_balance.executeQuery()) {
+                if (result.next()) {
+                    balance = result.getInt(1);
+                }
+            }
+            return Payment.insufficient(cost, balance);
+        }));
+    }
+
+    @Override
+    public int cancel(String username, int reservationId) throws SQLException {
+        return withConnection(WRITE_ISOLATION, () -> retries.run("cancel", () -> {
+            try (Transaction tx = Transaction.begin(conn)) {
+                mark_cancelled.setInt(1, reservationId);
+                mark_cancelled.setString(2, username);
+                int paid, cost, direct, fid1, fid2, dayOfMonth;
+                try (ResultSet cancelled = mark_cancelled.executeQuery()) {
+                    if (!cancelled.next()) {
+                        return 0;
+                    }
+                    paid = cancelled.getInt("ifpaid");
+                    cost = cancelled.getInt("cost");
+                    direct = cancelled.getInt("ifdirect");
+                    fid1 = cancelled.getInt("fid1");
+                    fid2 = cancelled.getInt("fid2");
+                    dayOfMonth = cancelled.getInt("dayOfMonth");
+                }
+                refund.setInt(1, paid == 1 ? cost : 0);
+                refund.setInt(2, SessionStore.Session.dayBit(dayOfMonth));
+                refund.setString(3, username);
+                refund.executeUpdate();
+                int shard = seatShard(username);
+                returnSeat(fid1, shard);
+                if (direct == 0) {
+                    returnSeat(fid2, shard);
+                }
+                tx.commit();
+                return dayOfMonth;
+            }
+        }));
+    }
+
+    /*
+     * With the flight catalog on, only the reservation rows are read and their flights come from the
+     * catalog, the ones it does not have yet read together in one query. Otherwise one join reads
+     * both.
+     */
+    @Override
+    public List<ReservationCache.Reservation> reservations(String username) throws SQLException {
+        return withConnection(READ_ISOLATION, () -> flightCatalog.isEnabled()
+                ? reservationsFromCatalog(username) : joinedReservations(username));
+    }
+
+    private List<ReservationCache.Reservation> joinedReservations(String username) throws SQLException {
+        List<ReservationCache.Reservation> read = new ArrayList<>();
+        all_reservation.setString(1, username);
+        try (ResultSet result = all_reservation.executeQuery()) {
+            while (result.next()) {
+                read.add(new ReservationCache.Reservation(result.getInt("reserveID"), result.getInt("ifpaid") == 1,
+                        getFlight(result, true), result.getInt("ifdirect") == 0 ? getFlight(result, false) : null));
+            }
+        }
+        return read;
+    }
+
+    private List<ReservationCache.Reservation> reservationsFromCatalog(String username) throws SQLException {
+        List<int[]> rows = new ArrayList<>();
+        List<Integer> fids = new ArrayList<>();
+        reservation_rows.setString(1, username);
+        try (ResultSet result = reservation_rows.executeQuery()) {
+            while (result.next()) {
+                int[] row = {result.getInt("reserveID"), result.getInt("ifpaid"), result.getInt("ifdirect"),
+                        result.getInt("fid1"), result.getInt("fid2")};
+                rows.add(row);
+                fids.add(row[3]);
+                if (row[2] == 0) {
+                    fids.add(row[4]);
+                }
+            }
+        }
+        List<ReservationCache.Reservation> read = new ArrayList<>();
+        if (rows.isEmpty()) {
+            return read;
+        }
+        Map<Integer, Query.Flight> flights =
+                flightCatalog.getAll(fids.stream().mapToInt(Integer::intValue).toArray(), this::loadFlights);
+        for (int[] row : rows) {
+            read.add(new ReservationCache.Reservation(row[0], row[1] == 1, flights.get(row[3]),
+                    row[2] == 0 ? flights.get(row[4]) : null));
+        }
+        return read;
+    }
+
+    private List<Query.Flight> loadFlights(int[] fids) throws SQLException {
+        StringJoiner list = new StringJoiner(",");
+        for (int fid : fids) {
+            list.add(String.valueOf(fid));
+        }
+        List<Query.Flight> flights = new ArrayList<>();
+        flights_by_fid.setString(1, list.toString());
+        try (ResultSet result = flights_by_fid.executeQuery()) {
+            while (result.next()) {
+                flights.add(getFlight(result, true));
+            }
+        }
+        return flights;
+    }
+
+    /*
+     * The seat shard a user's bookings and cancellations start from, spreading users over shards.
+     */
+    private static int seatShard(String username) {
+        return Math.floorMod(username.hashCode(), SEAT_SHARDS);
+    }
+
+    /*
+     * Takes one seat of a flight. Tries the preferred shard first, then any other shard that still
+     * has seats. The first booking of a flight creates its shards, splitting the capacity evenly.
+     *
+     * @return false if the flight is full
+     */
+    private boolean takeSeat(int fid, int capacity, int shard) throws SQLException {
+        if (decrementSeat(fid, shard)) {
+            return true;
+        }
+        List<Integer> withSeats = new ArrayList<>();
+        boolean exists = false;
+        check_seats.setInt(1, fid);
+        try (ResultSet seats = check_seats.executeQuery()) {
+            while (seats.next()) {
+                exists = true;
+                if (seats.getInt("seats") > 0) {
+                    withSeats.add(seats.getInt("shard"));
+                }
+            }
+        }
+        if (!exists) {
+            if (capacity <= 0) {
+                return false;
+            }
+            // the seat comes out of the preferred shard, or shard 0 if the split left it empty
+            int from = seatShare(capacity, shard) > 0 ? shard : 0;
+            for (int i = 0; i < SEAT_SHARDS; i++) {
+                int share = seatShare(capacity, i);
+                insert_seats.setInt(1, fid);
+                insert_seats.setInt(2, i);
+                insert_seats.setInt(3, i == from ? share - 1 : share);
+                insert_seats.addBatch();
+            }
+            insert_seats.executeBatch();
+            return true;
+        }
+        for (int other : withSeats) {
+            if (decrementSeat(fid, other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Seats shard i starts with, the remainder of the split goes to the lowest shards
+    private static int seatShare(int capacity, int i) {
+        return capacity / SEAT_SHARDS + (i < capacity % SEAT_SHARDS ? 1 : 0);
+    }
+
+    private boolean decrementSeat(int fid, int shard) throws SQLException {
+        take_seat.setInt(1, fid);
+        take_seat.setInt(2, shard);
+        return take_seat.executeUpdate() == 1;
+    }
+
+    /*
+     * Gives a seat back to the preferred shard, or to any shard of the flight if the preferred one
+     * does not exist (the shard count changed since the flight was first booked).
+     */
+    private void returnSeat(int fid, int shard) throws SQLException {
+        return_seat.setInt(1, fid);
+        return_seat.setInt(2, shard);
+        if (return_seat.executeUpdate() == 0) {
+            return_any_seat.setInt(1, fid);
+            return_any_seat.executeUpdate();
+        }
+    }
+
+    /**
+     * Example utility function that uses prepared statements
+     */
+    private int checkFlightCapacity(int fid) throws SQLException {
+        checkFlightCapacityStatement.clearParameters();
+        checkFlightCapacityStatement.setInt(1, fid);
+        ResultSet results = checkFlightCapacityStatement.executeQuery();
+        results.next();
+        int capacity = results.getInt("capacity");
+        results.close();
+
+        return capacity;
+    }
+
+    /**
+     * Throw IllegalStateException if transaction not completely complete, rollback.
+     *
+     * Transactions run in {@link Transaction} scopes, so a call that left one open shows as
+     * auto-commit still off, which the driver knows without a round trip. The server is only asked
+     * for @@TRANCOUNT with -Dflightapp.debug.trancount=true.
+     */
+    private void checkDanglingTransaction() {
+        try {
+            if (!conn.getAutoCommit()) {
+                try {
+                    conn.rollback();
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                throw new IllegalStateException("Transaction not fully commit/rollback");
+            }
+            if (CHECK_TRANCOUNT) {
+                try (ResultSet rs = tranCountStatement.executeQuery()) {
+                    rs.next();
+                    int count = rs.getInt("tran_count");
+                    if (count > 0) {
+                        throw new IllegalStateException(
+                                "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Database error", e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package flightapp;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, for many threads recording at once.
+ *
+ * Buckets are log-linear: every power of two is split into 32 equal buckets, so a value is kept to
+ * within about 3% whatever its size, and the whole range of a long fits in under 2000 counters.
+ * Recording is one increment of a bucket and a read of the maximum, and never blocks; the count and
+ * mean are summed from the buckets when asked for. Reads while others record are only as
+ * consistent as the counters were when each was read.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(index(value));
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += buckets.get(i);
+        }
+        return n;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Mean of the recorded values, each taken as the middle of its bucket.
+     */
+    double mean() {
+        long n = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = buckets.get(i);
+            if (c > 0) {
+                n += c;
+                sum += c * ((i == 0 ? 0 : highest(i - 1) + 1) + highest(i)) / 2.0;
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    /**
+     * The smallest recorded value that {@code p} (0 to 1) of all values are at or below, rounded up
+     * to the top of its bucket, or 0 if nothing was recorded.
+     */
+    long percentile(double p) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the counts. Values recorded while this runs may be half kept.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) & (SUB - 1));
+    }
+
+    // Largest value that falls in bucket i
+    static long highest(int i) {
+        if (i < 2 * SUB) {
+            return i;
+        }
+        int shift = i / SUB - 1;
+        long lowest = (long) (SUB + i % SUB) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
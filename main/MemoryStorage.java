@@ -0,0 +1,335 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.IntSupplier;
+
+/**
+ * Storage held in this JVM, shared by all sessions, for running the cases and load tests without a
+ * database server.
+ *
+ * Flights are read once from the CSV export of the Flights table named by
+ * -Dflightapp.storage.flights (columns in table order, header optional) and searched through a
+ * FlightIndex. Users, reservations and seats live in concurrent maps.
+ *
+ * Each call is atomic and serializable: it locks the user's account, then, when seats change, the
+ * flights' seat counters in fid order, and makes every change before letting go. A call never
+ * holds two accounts, so the fixed order cannot deadlock. Clearing swaps in empty maps, and a call
+ * still running on the old ones changes nothing that is read afterwards.
+ */
+class MemoryStorage implements Storage {
+    // CSV file with the flights, columns in the order of the Flights table
+    static final String FLIGHTS_PROPERTY = "flightapp.storage.flights";
+
+    // Columns of the Flights table used here
+    private static final int FID = 0;
+    private static final int DAY_OF_MONTH = 2;
+    private static final int CARRIER_ID = 4;
+    private static final int FLIGHT_NUM = 5;
+    private static final int ORIGIN_CITY = 6;
+    private static final int DEST_CITY = 8;
+    private static final int CANCELED = 13;
+    private static final int ACTUAL_TIME = 14;
+    private static final int CAPACITY = 16;
+    private static final int PRICE = 17;
+
+    private static MemoryStorage shared;
+
+    private final FlightIndex index;
+    private final Map<Integer, Query.Flight> flights;
+    private volatile Tables tables = new Tables();
+
+    // The tables that clear() empties
+    private static class Tables {
+        final ConcurrentHashMap<String, Account> users = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, Seats> seats = new ConcurrentHashMap<>();
+        final AtomicInteger lastId = new AtomicInteger();
+    }
+
+    // A user and their reservations, guarded by its own monitor
+    private static class Account {
+        final byte[] salt;
+        final byte[] hash;
+        int balance;
+        int bookedDays;
+        final TreeMap<Integer, Booking> reservations = new TreeMap<>();
+
+        Account(byte[] salt, byte[] hash, int balance) {
+            this.salt = salt;
+            this.hash = hash;
+            this.balance = balance;
+        }
+    }
+
+    // A reservation that is not cancelled, fid2 is -1 for a direct one
+    private static class Booking {
+        final int cost;
+        final int dayOfMonth;
+        final int fid1;
+        final int fid2;
+        boolean paid;
+
+        Booking(int cost, int dayOfMonth, int fid1, int fid2) {
+            this.cost = cost;
+            this.dayOfMonth = dayOfMonth;
+            this.fid1 = fid1;
+            this.fid2 = fid2;
+        }
+    }
+
+    // Seats left on a flight, guarded by its own monitor
+    private static class Seats {
+        final int fid;
+        int left;
+
+        Seats(int fid, int left) {
+            this.fid = fid;
+            this.left = left;
+        }
+    }
+
+    MemoryStorage(List<Query.Flight> flights) {
+        FlightIndex.Builder builder = new FlightIndex.Builder();
+        Map<Integer, Query.Flight> byFid = new HashMap<>();
+        for (Query.Flight f : flights) {
+            builder.add(f.fid, f.dayOfMonth, f.carrierId, Integer.parseInt(f.flightNum.trim()), f.originCity,
+                    f.destCity, f.time, f.capacity, f.price);
+            byFid.put(f.fid, f);
+        }
+        this.index = builder.build();
+        this.flights = byFid;
+    }
+
+    /**
+     * The storage shared by all {@code Query} instances, loading the flights on first use.
+     */
+    static synchronized MemoryStorage shared() throws IOException {
+        if (shared == null) {
+            String file = System.getProperty(FLIGHTS_PROPERTY, "flights-small.csv");
+            try (BufferedReader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                shared = new MemoryStorage(readFlights(in));
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Reads the flights that are not cancelled from a CSV export of the Flights table. A first line
+     * that does not start with a number is taken as the header.
+     */
+    static List<Query.Flight> readFlights(BufferedReader in) throws IOException {
+        List<Query.Flight> flights = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                continue;
+            }
+            List<String> fields = splitCsv(line);
+            if (number(fields.get(CANCELED)) != 0) {
+                continue;
+            }
+            Query.Flight f = new Query.Flight();
+            f.fid = number(fields.get(FID));
+            f.dayOfMonth = number(fields.get(DAY_OF_MONTH));
+            f.carrierId = fields.get(CARRIER_ID);
+            f.flightNum = String.valueOf(number(fields.get(FLIGHT_NUM)));
+            f.originCity = fields.get(ORIGIN_CITY);
+            f.destCity = fields.get(DEST_CITY);
+            f.time = number(fields.get(ACTUAL_TIME));
+            f.capacity = number(fields.get(CAPACITY));
+            f.price = number(fields.get(PRICE));
+            flights.add(f);
+        }
+        return flights;
+    }
+
+    // Splits one CSV line, fields may be quoted and contain commas
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // Empty columns are NULL in the table, read as 0 like ResultSet.getInt does
+    private static int number(String field) {
+        String s = field.trim();
+        return s.isEmpty() ? 0 : (int) Double.parseDouble(s);
+    }
+
+    @Override
+    public void clear() {
+        tables = new Tables();
+    }
+
+    @Override
+    public User findUser(String username) {
+        Account account = tables.users.get(username);
+        if (account == null) {
+            return null;
+        }
+        synchronized (account) {
+            return new User(account.salt, account.hash, account.bookedDays);
+        }
+    }
+
+    @Override
+    public boolean userExists(String username) {
+        return tables.users.containsKey(username);
+    }
+
+    @Override
+    public boolean createUser(String username, byte[] salt, byte[] hash, int balance) {
+        return tables.users.putIfAbsent(username, new Account(salt, hash, balance)) == null;
+    }
+
+    @Override
+    public List<Query.Itinerary> search(String originCity, String destCity, boolean directOnly, int dayOfMonth,
+                                        int limit) {
+        List<Query.Itinerary> results = index.searchDirect(originCity, destCity, dayOfMonth, limit);
+        if (!directOnly && results.size() < limit) {
+            results.addAll(index.searchIndirect(originCity, destCity, dayOfMonth, limit - results.size()));
+        }
+        return results;
+    }
+
+    @Override
+    public int book(String username, int itineraryId, int dayOfMonth, int cost, int fid1, int capacity1, int fid2,
+                    int capacity2) throws SQLException {
+        Tables t = tables;
+        Account account = account(t, username);
+        synchronized (account) {
+            int dayBit = SessionStore.Session.dayBit(dayOfMonth);
+            if ((account.bookedDays & dayBit) != 0) {
+                return SAME_DAY;
+            }
+            Seats first = t.seats.computeIfAbsent(fid1, fid -> new Seats(fid, capacity1));
+            Seats second = fid2 < 0 ? null : t.seats.computeIfAbsent(fid2, fid -> new Seats(fid, capacity2));
+            int reservationId = changeSeats(first, second, -1, () -> t.lastId.incrementAndGet());
+            if (reservationId < 0) {
+                return FLIGHT_FULL;
+            }
+            account.bookedDays |= dayBit;
+            account.reservations.put(reservationId, new Booking(cost, dayOfMonth, fid1, fid2));
+            return reservationId;
+        }
+    }
+
+    @Override
+    public Payment pay(String username, int reservationId) throws SQLException {
+        Account account = account(tables, username);
+        synchronized (account) {
+            Booking booking = account.reservations.get(reservationId);
+            if (booking == null || booking.paid) {
+                return Payment.notFound();
+            }
+            if (account.balance < booking.cost) {
+                return Payment.insufficient(booking.cost, account.balance);
+            }
+            account.balance -= booking.cost;
+            booking.paid = true;
+            return Payment.paid(account.balance);
+        }
+    }
+
+    @Override
+    public int cancel(String username, int reservationId) throws SQLException {
+        Tables t = tables;
+        Account account = account(t, username);
+        synchronized (account) {
+            Booking booking = account.reservations.remove(reservationId);
+            if (booking == null) {
+                return 0;
+            }
+            if (booking.paid) {
+                account.balance += booking.cost;
+            }
+            account.bookedDays &= ~SessionStore.Session.dayBit(booking.dayOfMonth);
+            // the seats exist, the booking took them
+            changeSeats(t.seats.get(booking.fid1), booking.fid2 < 0 ? null : t.seats.get(booking.fid2), 1, () -> 0);
+            return booking.dayOfMonth;
+        }
+    }
+
+    @Override
+    public List<ReservationCache.Reservation> reservations(String username) {
+        List<ReservationCache.Reservation> read = new ArrayList<>();
+        Account account = tables.users.get(username);
+        if (account == null) {
+            return read;
+        }
+        synchronized (account) {
+            for (Map.Entry<Integer, Booking> e : account.reservations.entrySet()) {
+                Booking b = e.getValue();
+                read.add(new ReservationCache.Reservation(e.getKey(), b.paid, flights.get(b.fid1),
+                        b.fid2 < 0 ? null : flights.get(b.fid2)));
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public void close() {
+        // shared by every session
+    }
+
+    private static Account account(Tables t, String username) throws SQLException {
+        Account account = t.users.get(username);
+        if (account == null) {
+            throw new SQLException("No user " + username);
+        }
+        return account;
+    }
+
+    /*
+     * Adds delta seats to one or two flights, holding both counters (in fid order) so the change is
+     * seen all at once. A change that would leave a flight with fewer than 0 seats is not made and
+     * -1 returned; otherwise whatever {@code then} returns, run while the counters are still held.
+     */
+    private static int changeSeats(Seats first, Seats second, int delta, IntSupplier then) {
+        if (second == null || second == first) {
+            synchronized (first) {
+                int needed = second == null ? -delta : -2 * delta;
+                if (first.left < needed) {
+                    return -1;
+                }
+                first.left += second == null ? delta : 2 * delta;
+                return then.getAsInt();
+            }
+        }
+        Seats low = first.fid < second.fid ? first : second;
+        Seats high = low == first ? second : first;
+        synchronized (low) {
+            synchronized (high) {
+                if (low.left + delta < 0 || high.left + delta < 0) {
+                    return -1;
+                }
+                low.left += delta;
+                high.left += delta;
+                return then.getAsInt();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+
+/**
+ * Counts each execution of a prepared statement as a SQL round trip of the command running on the
+ * calling thread, and each row read from its results as a row fetched (see {@link Metrics}), and
+ * records the execution as a flightapp.Statement event when Flight Recorder is on.
+ *
+ * The statement and its result sets are wrapped in proxies that pass every call through, so the
+ * code that runs the statements does not change. A query's event ends when its results have been
+ * read to the end or closed, so it includes fetching the rows.
+ */
+final class MeteredStatement implements InvocationHandler {
+    private final String name;
+    private final PreparedStatement statement;
+
+    private MeteredStatement(String name, PreparedStatement statement) {
+        this.name = name;
+        this.statement = statement;
+    }
+
+    /**
+     * Returns {@code statement} counted and recorded under {@code name}.
+     */
+    static PreparedStatement wrap(String name, PreparedStatement statement) {
+        return (PreparedStatement) Proxy.newProxyInstance(MeteredStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new MeteredStatement(name, statement));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "executeQuery": {
+                Events.Statement event = new Events.Statement();
+                event.begin();
+                ResultSet result = (ResultSet) call(statement, method, args);
+                Metrics.roundTrip(0);
+                return rows(result, event);
+            }
+            case "execute":
+            case "executeUpdate":
+            case "executeLargeUpdate":
+            case "executeBatch":
+            case "executeLargeBatch": {
+                Events.Statement event = new Events.Statement();
+                event.begin();
+                Object result = call(statement, method, args);
+                Metrics.roundTrip(0);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.statement = name;
+                    event.rows = changed(result);
+                    event.commit();
+                }
+                return result;
+            }
+            case "getResultSet": {
+                Object result = call(statement, method, args);
+                return result == null ? null : rows((ResultSet) result, null);
+            }
+            case "toString":
+                return name + ": " + call(statement, method, args);
+            default:
+                return call(statement, method, args);
+        }
+    }
+
+    // Rows changed by an update or batch, 0 when the statement returned results instead
+    private static long changed(Object result) {
+        if (result instanceof Integer || result instanceof Long) {
+            return ((Number) result).longValue();
+        }
+        long rows = 0;
+        if (result instanceof int[]) {
+            for (int n : (int[]) result) {
+                rows += Math.max(0, n);
+            }
+        } else if (result instanceof long[]) {
+            for (long n : (long[]) result) {
+                rows += Math.max(0, n);
+            }
+        }
+        return rows;
+    }
+
+    // Counts the rows as next() reaches them, ending the event at the last row or on close
+    private ResultSet rows(ResultSet results, Events.Statement event) {
+        return (ResultSet) Proxy.newProxyInstance(MeteredStatement.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, new InvocationHandler() {
+                    private long read;
+                    private boolean ended = event == null;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String called = method.getName();
+                        if (called.equals("close")) {
+                            end();
+                        }
+                        Object result = call(results, method, args);
+                        if (called.equals("next")) {
+                            if ((Boolean) result) {
+                                read++;
+                                Metrics.rows(1);
+                            } else {
+                                end();
+                            }
+                        }
+                        return result;
+                    }
+
+                    private void end() {
+                        if (!ended) {
+                            ended = true;
+                            event.end();
+                            if (event.shouldCommit()) {
+                                event.statement = name;
+                                event.rows = read;
+                                event.commit();
+                            }
+                        }
+                    }
+                });
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
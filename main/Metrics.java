@@ -0,0 +1,416 @@
+package flightapp;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Where the time of each command goes: a latency histogram per command and outcome, and per command
+ * the SQL round trips, rows fetched, commits, rollbacks and time spent on password hashes.
+ *
+ * FlightService.execute opens a command on its thread and closes it with the response; statements,
+ * transactions and the hasher add to the command open on their thread. Every recorder is a
+ * lock-free counter or LatencyHistogram. Each command is an MBean named
+ * flightapp:type=Command,name=&lt;command&gt;, and flightapp:type=Metrics dumps all of them, with the
+ * sessions, caches, pool, retries and hasher, as text, and reports the session count and memory.
+ * -Dflightapp.metrics=false turns recording off.
+ */
+class Metrics {
+    // Whether commands are recorded, on by default
+    static final String ENABLED_PROPERTY = "flightapp.metrics";
+    static final String DOMAIN = "flightapp";
+    // The commands FlightService knows, anything else is recorded as OTHER
+    static final List<String> COMMANDS = Collections.unmodifiableList(
+            Arrays.asList("create", "login", "search", "book", "pay", "reservations", "cancel", "quit"));
+    static final String OTHER = "other";
+
+    // What a successful response starts with, per command
+    private static final Map<String, String[]> SUCCESS = new HashMap<>();
+
+    static {
+        SUCCESS.put("create", new String[]{"Created user"});
+        SUCCESS.put("login", new String[]{"Logged in as"});
+        SUCCESS.put("search", new String[]{"Itinerary", "No flights match"});
+        SUCCESS.put("book", new String[]{"Booked"});
+        SUCCESS.put("pay", new String[]{"Paid"});
+        SUCCESS.put("reservations", new String[]{"Reservation", "No reservations"});
+        SUCCESS.put("cancel", new String[]{"Canceled"});
+        SUCCESS.put("quit", new String[]{"Goodbye"});
+    }
+
+    // The command running on each thread, null outside FlightService.execute
+    private static final ThreadLocal<Command> OPEN = new ThreadLocal<>();
+
+    private static final Metrics SHARED =
+            register(new Metrics(Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))));
+
+    private final boolean enabled;
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+
+    /**
+     * Attributes and operations of one command over JMX, times in milliseconds
+     */
+    public interface CommandMBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+
+        double getFailedP99Millis();
+
+        long getRoundTrips();
+
+        double getRoundTripsPerCommand();
+
+        long getRowsFetched();
+
+        long getCommits();
+
+        long getRollbacks();
+
+        double getHashMillis();
+
+        void reset();
+    }
+
+    /**
+     * Attributes and operations of all commands over JMX
+     */
+    public interface MetricsMBean {
+        String dump();
+
+        void reset();
+
+        int getOpenSessions();
+
+        long getEstimatedBytesPerSession();
+    }
+
+    /**
+     * The counters of one command.
+     */
+    static class Command implements CommandMBean {
+        final String name;
+        final LatencyHistogram ok = new LatencyHistogram();
+        final LatencyHistogram failed = new LatencyHistogram();
+        final LongAdder roundTrips = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder commits = new LongAdder();
+        final LongAdder rollbacks = new LongAdder();
+        final LongAdder hashNanos = new LongAdder();
+
+        Command(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public long getCount() {
+            return ok.count() + failed.count();
+        }
+
+        @Override
+        public long getFailures() {
+            return failed.count();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = getCount();
+            return n == 0 ? 0 : (ok.mean() * ok.count() + failed.mean() * failed.count()) / n / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return ok.percentile(0.50) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return ok.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return ok.percentile(0.999) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return Math.max(ok.max(), failed.max()) / 1e6;
+        }
+
+        @Override
+        public double getFailedP99Millis() {
+            return failed.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public long getRoundTrips() {
+            return roundTrips.sum();
+        }
+
+        @Override
+        public double getRoundTripsPerCommand() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) roundTrips.sum() / n;
+        }
+
+        @Override
+        public long getRowsFetched() {
+            return rows.sum();
+        }
+
+        @Override
+        public long getCommits() {
+            return commits.sum();
+        }
+
+        @Override
+        public long getRollbacks() {
+            return rollbacks.sum();
+        }
+
+        @Override
+        public double getHashMillis() {
+            return hashNanos.sum() / 1e6;
+        }
+
+        @Override
+        public void reset() {
+            ok.reset();
+            failed.reset();
+            roundTrips.reset();
+            rows.reset();
+            commits.reset();
+            rollbacks.reset();
+            hashNanos.reset();
+        }
+    }
+
+    Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (String name : COMMANDS) {
+            commands.put(name, new Command(name));
+        }
+        commands.put(OTHER, new Command(OTHER));
+    }
+
+    /**
+     * The metrics of all {@code Query} instances
+     */
+    static Metrics shared() {
+        return SHARED;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    // Registers the commands and the dump with the platform MBean server
+    private static Metrics register(Metrics metrics) {
+        if (!metrics.enabled) {
+            return metrics;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Command c : metrics.commands.values()) {
+                server.registerMBean(new StandardMBean(c, CommandMBean.class),
+                        new ObjectName(DOMAIN + ":type=Command,name=" + c.name));
+            }
+            MetricsMBean dump = new MetricsMBean() {
+                @Override
+                public String dump() {
+                    return metrics.dump();
+                }
+
+                @Override
+                public void reset() {
+                    metrics.reset();
+                }
+
+                @Override
+                public int getOpenSessions() {
+                    return SessionStore.shared().size();
+                }
+
+                @Override
+                public long getEstimatedBytesPerSession() {
+                    return SessionStore.shared().estimatedBytesPerSession();
+                }
+            };
+            server.registerMBean(new StandardMBean(dump, MetricsMBean.class),
+                    new ObjectName(DOMAIN + ":type=Metrics"));
+        } catch (JMException e) {
+            // another copy of the classes registered first, record without JMX
+        }
+        return metrics;
+    }
+
+    /**
+     * The counters of {@code command}, or of OTHER if it is not a known command.
+     */
+    Command command(String command) {
+        Command c = commands.get(command);
+        return c != null ? c : commands.get(OTHER);
+    }
+
+    /**
+     * Opens {@code command} on this thread, or returns null if recording is off.
+     */
+    Command begin(String command) {
+        if (!enabled) {
+            return null;
+        }
+        Command c = command(command);
+        OPEN.set(c);
+        return c;
+    }
+
+    /**
+     * Closes the command opened on this thread, recording its time since {@code startNanos}.
+     */
+    void end(Command c, long startNanos, boolean succeeded) {
+        long took = System.nanoTime() - startNanos;
+        OPEN.set(null);
+        (succeeded ? c.ok : c.failed).record(took);
+    }
+
+    /**
+     * Returns true if the response is what the command answers when it worked.
+     */
+    static boolean succeeded(String command, String response) {
+        String[] ok = SUCCESS.get(command);
+        if (ok == null) {
+            return !response.startsWith("Invalid") && !response.startsWith("Error");
+        }
+        for (String prefix : ok) {
+            if (response.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A statement ran on this thread and fetched {@code rows} rows.
+     */
+    static void roundTrip(long rows) {
+        Command c = OPEN.get();
+        if (c != null) {
+            c.roundTrips.increment();
+            if (rows > 0) {
+                c.rows.add(rows);
+            }
+        }
+    }
+
+    /**
+     * More rows were fetched by a statement that already counted its round trip.
+     */
+    static void rows(long rows) {
+        Command c = OPEN.get();
+        if (c != null) {
+            c.rows.add(rows);
+        }
+    }
+
+    static void commit() {
+        Command c = OPEN.get();
+        if (c != null) {
+            c.roundTrips.increment();
+            c.commits.increment();
+        }
+    }
+
+    static void rollback() {
+        Command c = OPEN.get();
+        if (c != null) {
+            c.roundTrips.increment();
+            c.rollbacks.increment();
+        }
+    }
+
+    /**
+     * The command on this thread waited {@code nanos} for a password hash, queueing included.
+     */
+    static void hashed(long nanos) {
+        Command c = OPEN.get();
+        if (c != null) {
+            c.hashNanos.add(nanos);
+        }
+    }
+
+    void reset() {
+        for (Command c : commands.values()) {
+            c.reset();
+        }
+    }
+
+    /**
+     * A text snapshot of every command that ran, then the sessions, the shared caches, pool, retries and hasher.
+     */
+    String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-13s %-7s %9s %9s %9s %9s %9s%n", "command", "outcome", "count", "p50 ms", "p99 ms",
+                "p999 ms", "max ms"));
+        for (Command c : commands.values()) {
+            histogramLine(sb, c.name, "ok", c.ok);
+            histogramLine(sb, c.name, "failed", c.failed);
+        }
+        sb.append(String.format("%-13s %9s %9s %9s %9s %9s %9s%n", "command", "sql/cmd", "rows", "commits",
+                "rollbacks", "hash ms", "mean ms"));
+        for (Command c : commands.values()) {
+            if (c.getCount() > 0) {
+                sb.append(String.format("%-13s %9.2f %9d %9d %9d %9.1f %9.3f%n", c.name, c.getRoundTripsPerCommand(),
+                        c.getRowsFetched(), c.getCommits(), c.getRollbacks(), c.getHashMillis(), c.getMeanMillis()));
+            }
+        }
+        SessionStore sessions = SessionStore.shared();
+        sb.append(String.format("sessions: %d open, ~%d bytes each, ~%d bytes in all, %d evicted%n", sessions.size(),
+                sessions.estimatedBytesPerSession(), sessions.estimatedBytes(), sessions.evictions()));
+        SearchCache search = SearchCache.shared();
+        sb.append(String.format("search cache: %d hits, %d misses, %d evictions, %d entries%n", search.hits(),
+                search.misses(), search.evictions(), search.size()));
+        ReservationCache reservations = ReservationCache.shared();
+        sb.append(String.format("reservation cache: %d hits, %d misses, %d evictions, %d mismatches%n",
+                reservations.hits(), reservations.misses(), reservations.evictions(), reservations.mismatches()));
+        FlightCatalog catalog = FlightCatalog.shared();
+        sb.append(String.format("flight catalog: %d hits, %d misses, %d evictions, %d flights%n", catalog.hits(),
+                catalog.misses(), catalog.evictions(), catalog.size()));
+        ConnectionPool pool = JdbcStorage.connectionPool();
+        if (pool != null) {
+            sb.append(String.format("pool: %d/%d active, %d waiting, %d borrows, %d timeouts, wait max %d ms%n",
+                    pool.activeConnections(), pool.max(), pool.waitingThreads(), pool.borrows(), pool.timeouts(),
+                    pool.maxWaitMillis()));
+        }
+        RetryPolicy retries = RetryPolicy.shared();
+        for (String command : retries.commands()) {
+            RetryPolicy.Counters c = retries.counters(command);
+            sb.append(String.format("%s retries: %d, given up %d, deadlocks %d%n", command, c.retries(), c.giveUps(),
+                    c.deadlocks()));
+        }
+        PasswordHasher hasher = PasswordHasher.shared();
+        sb.append(String.format("password hashes: %d, mean %.1f ms, queued mean %.1f ms, queue %d, rejected %d%n",
+                hasher.hashes(), hasher.meanHashNanos() / 1e6, hasher.meanWaitNanos() / 1e6, hasher.queueDepth(),
+                hasher.rejected()));
+        return sb.toString();
+    }
+
+    private static void histogramLine(StringBuilder sb, String command, String outcome, LatencyHistogram h) {
+        long n = h.count();
+        if (n > 0) {
+            sb.append(String.format("%-13s %-7s %9d %9.3f %9.3f %9.3f %9.3f%n", command, outcome, n,
+                    h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6));
+        }
+    }
+}
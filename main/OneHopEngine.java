@@ -0,0 +1,131 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Finds the k fastest one-hop itineraries without building the full self-join.
+ *
+ * Both legs are split per intermediate city, each list already sorted by (time, fid). For every hub
+ * the pairs form a sorted matrix, so the pairs can be enumerated in increasing total time by a
+ * priority queue that starts at the top-left cell of each hub and only ever expands the cells it
+ * pops. Enumeration stops after k pops, which costs O((hubs + k) log(hubs + k)) instead of the
+ * O(n^2) pairs per hub the join produces.
+ *
+ * Cell (i, j) is pushed after (i, j - 1), and (i, 0) after (i - 1, 0). A child never sorts before
+ * its parent under (total time, fid1, fid2): equal sums force equal leg times, and the lists break
+ * time ties by ascending fid. The pop order is therefore exactly SEARCH_INDIRECT's ORDER BY.
+ */
+class OneHopEngine {
+    private final int[] time;
+    private final int[] fid;
+    private final int[] origin;
+    private final int[] dest;
+    private final int cities;
+
+    /**
+     * @param time   flight duration per row
+     * @param fid    flight id per row
+     * @param origin encoded origin city per row
+     * @param dest   encoded destination city per row
+     * @param cities number of distinct encoded cities
+     */
+    OneHopEngine(int[] time, int[] fid, int[] origin, int[] dest, int cities) {
+        this.time = time;
+        this.fid = fid;
+        this.origin = origin;
+        this.dest = dest;
+        this.cities = cities;
+    }
+
+    /**
+     * Returns up to {@code limit} {first, second} row pairs with dest(first) == origin(second), in
+     * (total time, fid1, fid2) order.
+     *
+     * @param firstLegs  flights leaving the origin city, sorted by (time, fid)
+     * @param secondLegs flights arriving at the destination city, sorted by (time, fid)
+     */
+    int[][] topK(int[] firstLegs, int[] secondLegs, int limit) {
+        if (limit <= 0 || firstLegs.length == 0 || secondLegs.length == 0) {
+            return new int[0][];
+        }
+        int[][] seconds = splitByHub(secondLegs, origin, null);
+        int[][] firsts = splitByHub(firstLegs, dest, seconds);
+
+        PriorityQueue<Cursor> frontier = new PriorityQueue<>(this::compare);
+        for (int hub = 0; hub < cities; hub++) {
+            if (firsts[hub] != null && seconds[hub] != null) {
+                frontier.add(new Cursor(firsts[hub], seconds[hub], 0, 0));
+            }
+        }
+
+        List<int[]> results = new ArrayList<>(Math.min(limit, 64));
+        while (results.size() < limit && !frontier.isEmpty()) {
+            Cursor c = frontier.poll();
+            results.add(new int[]{c.firsts[c.i], c.seconds[c.j]});
+            if (c.j + 1 < c.seconds.length) {
+                frontier.add(new Cursor(c.firsts, c.seconds, c.i, c.j + 1));
+            }
+            if (c.j == 0 && c.i + 1 < c.firsts.length) {
+                frontier.add(new Cursor(c.firsts, c.seconds, c.i + 1, 0));
+            }
+        }
+        return results.toArray(new int[0][]);
+    }
+
+    /*
+     * Groups rows by the hub they touch, keeping their order. When a filter is given, hubs it has
+     * no rows for are skipped.
+     */
+    private int[][] splitByHub(int[] rows, int[] hubColumn, int[][] filter) {
+        int[] counts = new int[cities];
+        for (int row : rows) {
+            int hub = hubColumn[row];
+            if (filter == null || filter[hub] != null) {
+                counts[hub]++;
+            }
+        }
+        int[][] groups = new int[cities][];
+        for (int hub = 0; hub < cities; hub++) {
+            if (counts[hub] > 0) {
+                groups[hub] = new int[counts[hub]];
+                counts[hub] = 0;
+            }
+        }
+        for (int row : rows) {
+            int[] group = groups[hubColumn[row]];
+            if (group != null) {
+                group[counts[hubColumn[row]]++] = row;
+            }
+        }
+        return groups;
+    }
+
+    // ORDER BY (F1.actual_time + F2.actual_time), fid1, fid2
+    private int compare(Cursor a, Cursor b) {
+        int result = Integer.compare(a.sum, b.sum);
+        if (result != 0) {
+            return result;
+        }
+        result = Integer.compare(fid[a.firsts[a.i]], fid[b.firsts[b.i]]);
+        return result != 0 ? result : Integer.compare(fid[a.seconds[a.j]], fid[b.seconds[b.j]]);
+    }
+
+    /**
+     * A cell (i, j) of one hub's pair matrix.
+     */
+    private class Cursor {
+        final int[] firsts;
+        final int[] seconds;
+        final int i;
+        final int j;
+        final int sum;
+
+        Cursor(int[] firsts, int[] seconds, int i, int j) {
+            this.firsts = firsts;
+            this.seconds = seconds;
+            this.i = i;
+            this.j = j;
+            this.sum = time[firsts[i]] + time[seconds[j]];
+        }
+    }
+}
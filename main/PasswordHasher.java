@@ -0,0 +1,179 @@
+package flightapp;
+
+import java.security.*;
+import java.security.spec.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * PBKDF2 password hashing on a fixed pool of worker threads.
+ *
+ * A hash takes tens of milliseconds of CPU, so a burst of logins run on the callers' threads would
+ * take every core and stall the threads that serve I/O. Hashes are instead queued to one worker
+ * per core; the queue is bounded, and a hash that does not fit is refused rather than queued
+ * without limit. Each worker keeps its own SecretKeyFactory, and salts come from one shared
+ * SecureRandom.
+ */
+class PasswordHasher {
+    // Worker threads, defaults to the number of cores
+    static final String THREADS_PROPERTY = "flightapp.hash.threads";
+    // Hashes waiting for a worker before new ones are refused
+    static final String QUEUE_PROPERTY = "flightapp.hash.queue";
+
+    // Password hashing parameter constants
+    static final int HASH_STRENGTH = 65536;
+    static final int KEY_LENGTH = 128;
+    private static final int SALT_LENGTH = 16;
+
+    private static final PasswordHasher SHARED = fromProperties();
+
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int iterations;
+    private final ThreadPoolExecutor workers;
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    PasswordHasher(int threads, int queue, int iterations) {
+        if (threads <= 0 || queue <= 0) {
+            throw new IllegalArgumentException("Hash threads and queue must be positive");
+        }
+        this.iterations = iterations;
+        AtomicInteger ids = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, "password-hash-" + ids.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static PasswordHasher fromProperties() {
+        int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger(QUEUE_PROPERTY, threads * 64);
+        return new PasswordHasher(threads, queue, HASH_STRENGTH);
+    }
+
+    /**
+     * The hasher shared by all {@code Query} instances
+     */
+    static PasswordHasher shared() {
+        return SHARED;
+    }
+
+    /**
+     * A new random salt.
+     */
+    byte[] salt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Hashes the password on a worker and waits for the result.
+     *
+     * @throws IllegalStateException if the queue is full or the wait is interrupted
+     */
+    byte[] hash(String password, byte[] salt) {
+        long queued = System.nanoTime();
+        Future<byte[]> result;
+        try {
+            result = workers.submit(() -> {
+                long start = System.nanoTime();
+                waitNanos.addAndGet(start - queued);
+                Events.PasswordHash event = new Events.PasswordHash();
+                event.begin();
+                byte[] hash = compute(password, salt);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.iterations = iterations;
+                    event.queued = start - queued;
+                    event.commit();
+                }
+                long took = System.nanoTime() - start;
+                hashNanos.addAndGet(took);
+                maxHashNanos.accumulateAndGet(took, Math::max);
+                hashes.incrementAndGet();
+                return hash;
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new IllegalStateException("Too many passwords waiting to be hashed", e);
+        }
+        maxQueueDepth.accumulateAndGet(workers.getQueue().size(), Math::max);
+        try {
+            byte[] hash = result.get();
+            Metrics.hashed(System.nanoTime() - queued);
+            return hash;
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Hashing failed", e.getCause());
+        }
+    }
+
+    private byte[] compute(String password, byte[] salt) {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+        try {
+            return FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    long hashes() {
+        return hashes.get();
+    }
+
+    long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Mean time a worker spent on one hash, in nanoseconds
+     */
+    long meanHashNanos() {
+        long n = hashes.get();
+        return n == 0 ? 0 : hashNanos.get() / n;
+    }
+
+    long maxHashNanos() {
+        return maxHashNanos.get();
+    }
+
+    /**
+     * Mean time a hash waited in the queue for a worker, in nanoseconds
+     */
+    long meanWaitNanos() {
+        long n = hashes.get();
+        return n == 0 ? 0 : waitNanos.get() / n;
+    }
+
+    /**
+     * Hashes waiting for a worker right now
+     */
+    int queueDepth() {
+        return workers.getQueue().size();
+    }
+
+    int maxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
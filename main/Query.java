@@ -3,110 +3,26 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
-import java.security.*;
-import java.security.spec.*;
-import javax.crypto.*;
-import javax.crypto.spec.*;
 
 /**
  * Runs queries against a back-end database
  */
 public class Query {
-    // DB Connection
-    private Connection conn;
-    private static boolean loginStatus;
-    private static HashMap<String, HashMap<Integer, Itinerary>> userIti = new HashMap<>();
-    private String logginUser = "";
+    // Users, reservations, seats and flights, see Storage
+    private final Storage storage;
 
-    // Password hashing parameter constants
-    private static final int HASH_STRENGTH = 65536;
-    private static final int KEY_LENGTH = 128;
+    // Login and search state of this session, kept in the JVM-wide session store
+    private static final SessionStore sessions = SessionStore.shared();
+    private long sessionId;
 
-    // Canned queries
-    private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-    private PreparedStatement checkFlightCapacityStatement;
+    // Optional cache of flight rows shared by all sessions, see FlightCatalog
+    private static final FlightCatalog flightCatalog = FlightCatalog.shared();
 
-    // For check dangling
-    private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-    private PreparedStatement tranCountStatement;
-
-    // Clear Tables
-    private static final String CLEAR = "DELETE FROM Remainseat; DELETE FROM Reservations; DELETE FROM Users;";
-    private PreparedStatement clearTables;
-
-    // Create users
-    private static final String CREATE_USER = "INSERT INTO Users VALUES(?, ?, ?, ?)";
-    private PreparedStatement create_user;
-
-    // Find users
-    private static final String FIND_USER = "SELECT * FROM Users WHERE username = ?";
-    private PreparedStatement find_user;
-
-    // Search direct flights
-    private static final String SEARCH_N_DIRECT =
-            "SELECT TOP(?) fid, day_of_month, carrier_id, flight_num, " +
-                    "origin_city, dest_city, actual_time, " +
-                    "capacity, price "
-                    + "FROM Flights" + " WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? " +
-                    " AND canceled = 0 "  + " ORDER BY actual_time ASC, fid ASC;";
-    private PreparedStatement search_n_direct;
-
-    // Search one-hop flight
-    private static final String SEARCH_INDIRECT =
-            "SELECT TOP (?) F1.fid AS fid1 , F1.day_of_month AS day1, F1.carrier_id AS carrierid1, " +
-                    "F1.flight_num AS flightnum1, F1.origin_city AS origincity1, F1.dest_city AS destcity1, " +
-                    "F1.actual_time AS time1, F1.capacity AS capacity1, F1.price AS price1, "
-                    + "F2.fid AS fid2, F2.day_of_month AS day2, F2.carrier_id as carrierid2, " +
-                    "F2.flight_num AS flightnum2, F2.origin_city AS origincity2, F2.dest_city AS destcity2, " +
-                    "F2.actual_time AS time2, F2.capacity AS capacity2, F2.price AS price2 "
-                    + "FROM Flights F1, Flights F2 "
-                    + "WHERE F1.canceled <> 1 AND F2.canceled <> 1 AND F1.origin_city = ? AND F1.dest_city = F2.origin_city "
-                    + "AND F2.dest_city = ? AND F1.day_of_month = ? AND F1.day_of_month = F2.day_of_month "
-                    + "ORDER BY (F1.actual_time + F2.actual_time) ASC, fid1 ASC, fid2 ASC";
-    private PreparedStatement search_indirect;
-
-    private static final String FIND_VALIDRESERVE = "SELECT * FROM Reservations WHERE ifcancelled = 0 AND ifpaid = 0 AND username = ? AND reserveID = ?";
-    private PreparedStatement find_validreserve;
-
-    private static final String FIND_CANCEL = "SELECT * FROM Reservations WHERE ifcancelled = 0 AND username = ? AND reserveID = ?";
-    private PreparedStatement find_cancel;
-
-    private static final String FIND_RESERVEID = "SELECT count(*) AS 'count' FROM Reservations";
-    private PreparedStatement find_reseveid;
-
-    private static final String ADD_RESERVE = "INSERT INTO Reservations VALUES(?,?,?,?,?,?,?,?,?,?)";
-    private PreparedStatement add_reserve;
-
-    private static final String CHECK_DATE = "SELECT dayOfMonth FROM Reservations WHERE dayOfMonth = ? AND username = ?";
-    private PreparedStatement check_date;
-
-    private static final String All_RESERVATION = "SELECT * FROM Reservations WHERE username = ? AND ifcancelled = 0 ORDER BY reserveID";
-    private PreparedStatement all_reservation;
-
-    private static final String CANCEL_RESERVATION = "UPDATE Reservations SET ifcancelled = 1, ifpaid = 0 WHERE reserveID = ? AND ifcancelled = 0";
-    private PreparedStatement cancel_reservation;
-
-    private static final String CHECK_BALANCE = "SELECT balance FROM Users WHERE username = ?";
-    private PreparedStatement check_balance;
-
-    private static final String UPDATE_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
-    private PreparedStatement update_balance;
-
-    private static final String UPDATE_PAID = "UPDATE Reservations SET ifpaid = 1 WHERE reserveID = ?";
-    private PreparedStatement update_paid;
-
-    private static final String INSERT_SEATS = "INSERT INTO Remainseat VALUES(?,?)";
-    private PreparedStatement insert_seats;
-
-    private static final String CHECK_SEATS = "SELECT seats FROM Remainseat WHERE fid = ?";
-    private PreparedStatement check_seats;
-
-    private static final String UPDATE_SEATS = "UPDATE Remainseat SET seats = ? WHERE fid = ?";
-    private PreparedStatement update_seats;
-
-    private static final String FIND_FLIGHTS = "SELECT * from Flights WHERE fid = ?";
-    private PreparedStatement find_flights;
+    // Optional in-memory copy of each user's reservations, see ReservationCache
+    private static final ReservationCache reservationCache = ReservationCache.shared();
 
+    // Password hashing runs on its own worker pool, see PasswordHasher
+    private static final PasswordHasher hasher = PasswordHasher.shared();
 
     public Query() throws SQLException, IOException {
         this(null, null, null, null);
@@ -114,10 +30,20 @@ public class Query {
 
     protected Query(String serverURL, String dbName, String adminName, String password)
             throws SQLException, IOException {
-        conn = serverURL == null ? openConnectionFromDbConn()
-                : openConnectionFromCredential(serverURL, dbName, adminName, password);
+        storage = Storage.open(serverURL, dbName, adminName, password);
+        sessionId = sessions.open().id;
+    }
 
-        prepareStatements();
+    /**
+     * Returns this session's state, starting a new logged out session if it was evicted while idle.
+     */
+    private SessionStore.Session session() {
+        SessionStore.Session session = sessions.get(sessionId);
+        if (session == null) {
+            session = sessions.open();
+            sessionId = session.id;
+        }
+        return session;
     }
 
     /**
@@ -164,24 +90,19 @@ public class Query {
     }
 
     /**
-     * Get underlying connection
+     * Get underlying connection. With pooling on there is only one while a command runs, and there
+     * is none with the in-memory storage.
      */
     public Connection getConnection() {
-        return conn;
+        return storage instanceof JdbcStorage ? ((JdbcStorage) storage).connection() : null;
     }
 
     /**
      * Closes the application-to-database connection
      */
     public void closeConnection() throws SQLException {
-        userIti.clear();
-        loginStatus = false;
-        conn.close();
-        /*try {
-            clear_search.executeUpdate();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }*/
+        sessions.close(sessionId);
+        storage.close();
     }
 
     /**
@@ -191,39 +112,13 @@ public class Query {
      */
     public void clearTables() {
         try {
-            clearTables.executeUpdate();
+            storage.clear();
+            reservationCache.invalidateAll();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    /*
-     * prepare all the SQL statements in this method.
-     */
-    private void prepareStatements() throws SQLException {
-        checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-        tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
-        clearTables = conn.prepareStatement(CLEAR);
-        create_user = conn.prepareStatement(CREATE_USER);
-        find_user = conn.prepareStatement(FIND_USER);
-        search_n_direct = conn.prepareStatement(SEARCH_N_DIRECT);
-        search_indirect = conn.prepareStatement(SEARCH_INDIRECT);
-        find_validreserve = conn.prepareStatement(FIND_VALIDRESERVE);
-        find_cancel = conn.prepareStatement(FIND_CANCEL);
-        find_reseveid = conn.prepareStatement(FIND_RESERVEID);
-        add_reserve = conn.prepareStatement(ADD_RESERVE);
-        cancel_reservation = conn.prepareStatement(CANCEL_RESERVATION);
-        check_balance = conn.prepareStatement(CHECK_BALANCE);
-        update_balance = conn.prepareStatement(UPDATE_BALANCE);
-        update_paid = conn.prepareStatement(UPDATE_PAID);
-        check_seats = conn.prepareStatement(CHECK_SEATS);
-        update_seats = conn.prepareStatement(UPDATE_SEATS);
-        insert_seats = conn.prepareStatement(INSERT_SEATS);
-        all_reservation = conn.prepareStatement(All_RESERVATION);
-        check_date = conn.prepareStatement(CHECK_DATE);
-        find_flights = conn.prepareStatement(FIND_FLIGHTS);
-    }
-
     /**
      * Takes a user's username and password and attempts to log the user in.
      *
@@ -235,29 +130,27 @@ public class Query {
      */
     public String transaction_login(String username, String password) {
         try {
-            if (loginStatus) {
+            SessionStore.Session session = session();
+            if (session.username() != null) {
                 return "User already logged in\n";
             }
             username = username.toLowerCase();
-            find_user.setString(1, username);
-            ResultSet user = find_user.executeQuery();
-            if (user.next()){
-                byte[] salt = user.getBytes("salted");
-                byte[] hashCorrect = user.getBytes("passwordHash");
-                byte[] hash = generateHash(password, salt);
-                if (Arrays.equals(hash, hashCorrect)) {
-                    loginStatus = true;
-                    logginUser = username;
+            Storage.User user = storage.findUser(username);
+            if (user != null) {
+                byte[] hash = hasher.hash(password, user.salt);
+                if (Arrays.equals(hash, user.hash)) {
+                    session.login(username, user.bookedDays);
                     return "Logged in as " + username +"\n";
                 }
             }
             return "Login failed\n";
+        } catch (IllegalStateException e) {
+            // too many logins waiting to be hashed
+            return "Login failed\n";
         } catch (SQLException e) {
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             return errors.toString();
-        } finally {
-            checkDanglingTransaction();
         }
     }
 
@@ -275,38 +168,21 @@ public class Query {
         if (initAmount < 0) {
             return "Failed to create user\n";
         }
-        username = username.toLowerCase();
-        byte[] salt = generateSalt();
-        byte[] hash = generateHash(password, salt);
-
+        String user = username.toLowerCase();
         try {
-            find_user.setString(1, username);
-            ResultSet result = find_user.executeQuery();
-            while (!result.next()) {
-                conn.setAutoCommit(false);
-                try{
-                    create_user.clearParameters();
-                    create_user.setString(1, username);
-                    create_user.setBytes(2, hash);
-                    create_user.setBytes(3, salt);
-                    create_user.setInt(4, initAmount);
-                    create_user.executeUpdate();
-                    conn.commit();
-                    conn.setAutoCommit(true);
-                    return "Created user " + username + "\n";
-                } catch(SQLException e) {
-                    conn.rollback();
-                    conn.setAutoCommit(true);
-                    find_user.setString(1, username);
-                    result = find_user.executeQuery();
-                }
+            // a taken name is refused before paying for a hash
+            if (storage.userExists(user)) {
+                return "Failed to create user\n";
+            }
+            byte[] salt = hasher.salt();
+            byte[] hash = hasher.hash(password, salt);
+            // another session may have taken the name in the meantime
+            if (!storage.createUser(user, salt, hash, initAmount)) {
+                return "Failed to create user\n";
             }
+            return "Created user " + user + "\n";
+        } catch (SQLException | IllegalStateException e) {
             return "Failed to create user\n";
-        } catch (SQLException exp) {
-            String errmsg1 = exp.getMessage();
-            return "Error" + errmsg1;
-        } finally {
-            checkDanglingTransaction();
         }
     }
 
@@ -343,81 +219,63 @@ public class Query {
     public String transaction_search(String originCity, String destinationCity, boolean directFlight,
                                      int dayOfMonth, int numberOfItineraries) {
 
-        StringBuffer sb = new StringBuffer();
-        ArrayList<Itinerary> searchFlightsResults = new ArrayList<>();
-        HashMap<Integer, Itinerary> itiInfo = new HashMap<>();
-        searchFlightsResults.clear();
+        List<Itinerary> directResults = new ArrayList<>();
+        List<Itinerary> indirectResults = new ArrayList<>();
+        List<Itinerary> itiInfo = new ArrayList<>();
         try {
-            searchAndStoreFlights(search_n_direct, searchFlightsResults, originCity, destinationCity, dayOfMonth, numberOfItineraries, true);
-            if (!directFlight && searchFlightsResults.size() < numberOfItineraries) {
-                searchAndStoreFlights(search_indirect, searchFlightsResults, originCity, destinationCity, dayOfMonth,
-                        numberOfItineraries - searchFlightsResults.size(), false);
+            SearchCache cache = SearchCache.shared();
+            SearchCache.Result cached = cache.isEnabled()
+                    ? cache.get(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries) : null;
+            if (cached != null) {
+                directResults.addAll(cached.direct);
+                indirectResults.addAll(cached.indirect);
+            } else {
+                for (Itinerary itinerary : storage.search(originCity, destinationCity, directFlight, dayOfMonth,
+                        numberOfItineraries)) {
+                    (itinerary.isDirect() ? directResults : indirectResults).add(itinerary);
+                }
             }
-            if (searchFlightsResults.isEmpty()) {
-                return "No flights match your selection\n";
+
+            String listing = renderItineraries(directResults, indirectResults, numberOfItineraries, itiInfo);
+            // shown flights are the ones that get booked and listed later
+            for (Itinerary itinerary : itiInfo) {
+                flightCatalog.put(itinerary.firstFlight);
+                if (itinerary.secondFlight != null) {
+                    flightCatalog.put(itinerary.secondFlight);
+                }
             }
-            searchFlightsResults.sort(Itinerary::compareTo);
-            for (int i = 0; i < searchFlightsResults.size(); i++) {
-                sb.append(searchFlightsResults.get(i).toString(i));
-                itiInfo.put(i, searchFlightsResults.get(i));
+            if (cached == null) {
+                cache.put(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+                        directResults, indirectResults);
             }
-            userIti.put(logginUser, itiInfo);
-            return sb.toString();
+            if (itiInfo.isEmpty()) {
+                return "No flights match your selection\n";
+            }
+            session().setItineraries(itiInfo);
+            return listing;
         } catch (SQLException e) {
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             return errors.toString();
         }
-        finally {
-            checkDanglingTransaction();
-        }
     }
 
-    private void searchAndStoreFlights(PreparedStatement searchStatement, ArrayList<Itinerary> searchFlightsResults, String originCity, String destCity, int dayOfMonth,
-                                       int numberOfItineraries, boolean directFlight) throws SQLException {
-        searchStatement.clearParameters();
-        searchStatement.setInt(1, numberOfItineraries);
-        searchStatement.setString(2, originCity);
-        searchStatement.setString(3, destCity);
-        searchStatement.setInt(4, dayOfMonth);
-        ResultSet searchResult = searchStatement.executeQuery();
-        while (searchResult.next()) {
-            searchFlightsResults.add(getItinerary(searchResult, directFlight));
-        }
-    }
-
- /* fid, day_of_month, carrier_id, flight_num, " +
-          "origin_city, dest_city, actual_time, " +
-          "capacity, price " */
-
-    private Flight getFlight(ResultSet resultSet, boolean directFlight) throws SQLException{
-        Flight result = new Flight();
-        int index = 1;
-        if (!directFlight) {
-            index = 10;
-        }
-        result.fid = resultSet.getInt(index);
-        result.dayOfMonth = resultSet.getInt(index+1);
-        result.carrierId = resultSet.getString(index+2);
-        result.flightNum = resultSet.getString(index+3);
-        result.originCity = resultSet.getString(index+4);
-        result.destCity = resultSet.getString(index+5);
-        result.time = resultSet.getInt(index+6);
-        result.capacity = resultSet.getInt(index+7);
-        result.price = resultSet.getInt(index+8);
-        return result;
-    }
-
-    private Itinerary getItinerary(ResultSet resultSet, boolean directFlight) throws SQLException {
-        Itinerary result = new Itinerary();
-        result.firstFlight = getFlight(resultSet, true);
-        if (!directFlight) {
-            result.secondFlight = getFlight(resultSet, false);
+    /*
+     * Renders up to {@code limit} itineraries numbered from 0, adding each one shown to {@code shown}.
+     * Direct flights take the first places of the search, and the merge orders both by total time.
+     */
+    static String renderItineraries(List<Itinerary> direct, List<Itinerary> indirect, int limit,
+                                    List<Itinerary> shown) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        SearchMerge merge = new SearchMerge(SearchMerge.of(direct), SearchMerge.byTotalTime(SearchMerge.of(indirect)),
+                limit);
+        for (Itinerary itinerary = merge.next(); itinerary != null; itinerary = merge.next()) {
+            sb.append(itinerary.toString(shown.size()));
+            shown.add(itinerary);
         }
-        return result;
+        return sb.toString();
     }
 
-
     /**
      * Implements the book itinerary function.
      *
@@ -436,112 +294,45 @@ public class Query {
      *         increments by 1 each time a successful reservation is made by any user in the system.
      */
     public String transaction_book(int itineraryId) {
-        if (!loginStatus) {
+        SessionStore.Session session = session();
+        String logginUser = session.username();
+        if (logginUser == null) {
             return "Cannot book reservations, not logged in\n";
         }
-        if(!userIti.containsKey(logginUser)){
-            return "No such itinerary " + itineraryId + "\n";
-        }
-        //private static HashMap<String, HashMap<Integer, Itinerary>> userIti = new HashMap<>();
-        HashMap<Integer, Itinerary> itiInfo = userIti.get(logginUser);
-        if (!itiInfo.containsKey(itineraryId)) {
+        if (!session.hasItinerary(itineraryId)) {
             return "No such itinerary " + itineraryId + "\n";
         }
-        if (!itiInfo.get(itineraryId).hasCapacity()){
+        if (!session.hasCapacity(itineraryId)){
             return "Booking failed\n";
         }
+        int dayOfMonth = session.dayOfMonth(itineraryId);
         try {
-            conn.setAutoCommit(false);
-
-            ResultSet count = find_reseveid.executeQuery();
-            int reserveid = 1;
-            if (count.next()){
-                reserveid = count.getInt("count") + 1;
-            }
-
-            Flight fid1 = itiInfo.get(itineraryId).firstFlight;
-            check_seats.setInt(1, fid1.fid);
-            ResultSet seats = check_seats.executeQuery();
-            if (seats.next()){
-                int remain = seats.getInt(1);
-                if (remain > 0) {
-                    update_seats.setInt(1, remain - 1);
-                    update_seats.setInt(2, fid1.fid);
-                    update_seats.executeUpdate();
-                } else {
-                    conn.setAutoCommit(true);
-                    return "Booking failed\n";
+            // another session of the same user may have cancelled that day, so a set bit is checked
+            // against the database before refusing
+            if (session.hasBookingOn(dayOfMonth)) {
+                Storage.User user = storage.findUser(logginUser);
+                if (user != null) {
+                    session.refreshBookedDays(user.bookedDays);
+                }
+                if (session.hasBookingOn(dayOfMonth)) {
+                    return "You cannot book two flights in the same day\n";
                 }
-            } else {
-                insert_seats.setInt(1, fid1.fid);
-                insert_seats.setInt(2, fid1.capacity - 1);
-                insert_seats.executeUpdate();
             }
-
-            int dayOfMonth = fid1.dayOfMonth;
-            check_date.setInt(1, dayOfMonth);
-            check_date.setString(2, logginUser);
-            ResultSet dateList = check_date.executeQuery();
-            if (dateList.next()) {
-                conn.setAutoCommit(true);
+            boolean direct = session.isDirect(itineraryId);
+            int reserveid = storage.book(logginUser, itineraryId, dayOfMonth, session.cost(itineraryId),
+                    session.firstFid(itineraryId), session.firstCapacity(itineraryId),
+                    direct ? -1 : session.secondFid(itineraryId), direct ? 0 : session.secondCapacity(itineraryId));
+            if (reserveid == Storage.SAME_DAY) {
+                session.bookedOn(dayOfMonth);
                 return "You cannot book two flights in the same day\n";
+            } else if (reserveid < 0) {
+                return "Booking failed\n";
             }
-
-            int cost = itiInfo.get(itineraryId).totalCost();
-            add_reserve.clearParameters();
-            add_reserve.setInt(1, reserveid);
-            add_reserve.setString(2, logginUser);
-            add_reserve.setInt(3, itineraryId);
-            add_reserve.setInt(5, fid1.fid);
-            add_reserve.setInt(7, cost);
-            add_reserve.setInt(10, dayOfMonth);
-
-            // handle indirect flight
-            int boo = 1;
-            if (!itiInfo.get(itineraryId).isDirect()){
-                boo = 0;
-                Flight fid2 = itiInfo.get(itineraryId).secondFlight;
-                check_seats.setInt(1, fid2.fid);
-                ResultSet seats2 = check_seats.executeQuery();
-                if (seats2.next()){
-                    int remain = seats2.getInt(1);
-                    if (remain > 0) {
-                        update_seats.setInt(1, remain - 1);
-                        update_seats.setInt(2, fid2.fid);
-                        update_seats.executeUpdate();
-                    } else {
-                        conn.setAutoCommit(true);
-                        return "Booking failed\n";
-                    }
-                } else {
-                    insert_seats.setInt(1, fid2.fid);
-                    insert_seats.setInt(2, fid2.capacity - 1);
-                    insert_seats.executeUpdate();
-                }
-                add_reserve.setInt(6, fid2.fid);
-            } else {
-                add_reserve.setNull(6, Types.INTEGER);
-            }
-
-            add_reserve.setInt(4, boo);
-            add_reserve.setInt(8, 0);
-            add_reserve.setInt(9, 0);
-            add_reserve.executeUpdate();
-            conn.commit();
-            conn.setAutoCommit(true);
+            session.bookedOn(dayOfMonth);
+            cacheBooking(session, logginUser, itineraryId, reserveid);
             return "Booked flight(s), reservation ID: " + reserveid +"\n";
         } catch (SQLException e) {
-            //String errmsg = e.getMessage();
-            try {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return transaction_book(itineraryId);
-            } catch (SQLException exp) {
-                String errmsg1 = exp.getMessage();
-                return "Rollback failed" + errmsg1;
-            }
-        } finally {
-            checkDanglingTransaction();
+            return "Booking failed\n";
         }
     }
 
@@ -561,60 +352,22 @@ public class Query {
      *         [balance]\n" where [balance] is the remaining balance in the user's account.
      */
     public String transaction_pay(int reservationId) {
-        if (!loginStatus) {
+        String logginUser = session().username();
+        if (logginUser == null) {
             return "Cannot pay, not logged in\n";
         }
         try {
-            conn.setAutoCommit(false);
-            // check if reservation is valid
-            find_validreserve.setString(1, logginUser);
-            find_validreserve.setInt(2, reservationId);
-            ResultSet result1 = find_validreserve.executeQuery();
-            int cost = 0;
-            if (result1.next()) {
-                cost = result1.getInt("cost");
-            } else {
-                conn.setAutoCommit(true);
+            Storage.Payment payment = storage.pay(logginUser, reservationId);
+            if (!payment.found) {
                 return "Cannot find unpaid reservation " +  reservationId + " under user: " + logginUser +"\n";
             }
-
-            // check if contain enough balance
-            check_balance.setString(1, logginUser);
-            ResultSet result2 = check_balance.executeQuery();
-            int balance = 0;
-            if (result2.next()) {
-                balance = result2.getInt(1);
+            if (!payment.paid) {
+                return "User has only " + payment.balance + " in account but itinerary costs " + payment.cost + "\n";
             }
-            if (balance < cost) {
-                conn.setAutoCommit(true);
-                return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
-            }
-
-            // update balance
-            int remain = balance - cost;
-            update_balance.setInt(1, remain);
-            update_balance.setString(2, logginUser);
-            update_balance.executeUpdate();
-
-            //update reservation
-            update_paid.setInt(1, reservationId);
-            update_paid.executeUpdate();
-
-            conn.commit();
-            conn.setAutoCommit(true);
-            return "Paid reservation: " + reservationId + " remaining balance: " + remain + "\n";
+            reservationCache.paid(logginUser, reservationId);
+            return "Paid reservation: " + reservationId + " remaining balance: " + payment.balance + "\n";
         } catch (SQLException e) {
-            String errmsg = e.getMessage();
-            try {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Failed to pay for reservation " + reservationId + "\n";
-            } catch (SQLException exp) {
-                String errmsg1 = exp.getMessage();
-                return "Rollback failed" + errmsg1;
-            }
-        } finally {
-            checkDanglingTransaction();
+            return "Failed to pay for reservation " + reservationId + "\n";
         }
     }
 
@@ -637,77 +390,76 @@ public class Query {
      * @see Flight#toString()
      */
     public String transaction_reservations() {
-        if (!loginStatus) {
+        String logginUser = session().username();
+        if (logginUser == null) {
             return "Cannot view reservations, not logged in\n";
         }
-        StringBuffer sb = new StringBuffer();
+        if (reservationCache.isEnabled() && !reservationCache.isVerifying()) {
+            List<ReservationCache.Reservation> cached = reservationCache.get(logginUser);
+            if (cached != null) {
+                return renderReservations(cached);
+            }
+        }
         try {
-            //conn.setAutoCommit(false);
-            all_reservation.setString(1, logginUser);
-            ResultSet result = all_reservation.executeQuery();
-            if (!result.isBeforeFirst()) {
-                //conn.setAutoCommit(true);
-                return "No reservations found\n";
+            if (!reservationCache.isEnabled()) {
+                return renderReservations(storage.reservations(logginUser));
             }
-            while (result.next()) {
-                sb.append("Reservation ").append(result.getInt("reserveID")).append(" paid: ");
-                if (result.getInt("ifpaid") == 1) {
-                    sb.append("true:\n");
-                } else {
-                    sb.append("false:\n");
-                }
-                int fid1 = result.getInt("fid1");
-                find_flights.setInt(1, fid1);
-                ResultSet flights = find_flights.executeQuery();
-                if(flights.next()){
-                    Flight first = new Flight();
-                    first.fid = fid1;
-                    first.dayOfMonth = flights.getInt("day_of_month");
-                    first.carrierId = flights.getString("carrier_id");
-                    first.flightNum = String.valueOf(flights.getInt("flight_num"));
-                    first.originCity = flights.getString("origin_city");
-                    first.destCity = flights.getString("dest_city");
-                    first.time = flights.getInt("actual_time");
-                    first.capacity = flights.getInt("capacity");
-                    first.price = flights.getInt("price");
-                    sb.append(first.toString());
-                }
-                if (result.getInt("ifdirect") == 0){
-                    int fid2 = result.getInt("fid2");
-                    find_flights.setInt(1, fid2);
-                    ResultSet flights2 = find_flights.executeQuery();
-                    if (flights2.next()){
-                        Flight second = new Flight();
-                        second.fid = fid2;
-                        second.dayOfMonth = flights.getInt("day_of_month");
-                        second.carrierId = flights.getString("carrier_id");
-                        second.flightNum = String.valueOf(flights.getInt("flight_num"));
-                        second.originCity = flights.getString("origin_city");
-                        second.destCity = flights.getString("dest_city");
-                        second.time = flights.getInt("actual_time");
-                        second.capacity = flights.getInt("capacity");
-                        second.price = flights.getInt("price");
-                        sb.append(second.toString());
-                    }
-                }
+            return reservationsIntoCache(logginUser);
+        } catch (SQLException e) {
+            return "Failed to retrieve reservations\n";
+        }
+    }
+
+    /*
+     * Reads the reservations into the reservation cache and lists them. In verify mode the cached
+     * list, if any, is compared with what storage returned.
+     */
+    private String reservationsIntoCache(String logginUser) throws SQLException {
+        long stamp = reservationCache.stamp(logginUser);
+        List<ReservationCache.Reservation> cached =
+                reservationCache.isVerifying() ? reservationCache.get(logginUser) : null;
+        List<ReservationCache.Reservation> read = storage.reservations(logginUser);
+        String listing = renderReservations(read);
+        if (cached != null && reservationCache.stamp(logginUser) == stamp
+                && !renderReservations(cached).equals(listing)) {
+            System.err.println("Reservation cache differs from the database for " + logginUser + ":\n"
+                    + renderReservations(cached) + "database:\n" + listing);
+            reservationCache.mismatch(logginUser);
+        }
+        reservationCache.fill(logginUser, stamp, read);
+        return listing;
+    }
+
+    private static String renderReservations(List<ReservationCache.Reservation> reservations) {
+        if (reservations.isEmpty()) {
+            return "No reservations found\n";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ReservationCache.Reservation r : reservations) {
+            sb.append("Reservation ").append(r.id).append(" paid: ").append(r.paid ? "true:\n" : "false:\n");
+            sb.append(r.first);
+            if (r.second != null) {
+                sb.append(r.second);
             }
-            //conn.commit();
-            //conn.setAutoCommit(true);
-            return sb.toString();
-        } catch (SQLException e){
-            /*try {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return transaction_reservations();
-            } catch (SQLException exp) {
-                String errmsg1 = exp.getMessage();
-                return "Rollback failed" + errmsg1;
-            }*/
-            StringWriter errors = new StringWriter();
-            e.printStackTrace(new PrintWriter(errors));
-            return errors.toString();
-        } finally {
-            checkDanglingTransaction();
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Adds a committed booking to the reservation cache. The flights come from the flight catalog,
+     * which has them if the itinerary was shown by a search; otherwise the user's list is dropped and
+     * read again on the next listing.
+     */
+    private void cacheBooking(SessionStore.Session session, String user, int itineraryId, int reserveId) {
+        if (!reservationCache.isEnabled()) {
+            return;
+        }
+        Flight first = flightCatalog.get(session.firstFid(itineraryId));
+        Flight second = session.isDirect(itineraryId) ? null : flightCatalog.get(session.secondFid(itineraryId));
+        if (first == null || (second == null && !session.isDirect(itineraryId))) {
+            reservationCache.invalidate(user);
+        } else {
+            reservationCache.booked(user, new ReservationCache.Reservation(reserveId, false, first, second));
         }
     }
 
@@ -724,138 +476,24 @@ public class Query {
      *         Even though a reservation has been canceled, its ID should not be reused by the system.
      */
     public String transaction_cancel(int reservationId) {
-        if (!loginStatus) {
+        String logginUser = session().username();
+        if (logginUser == null) {
             return "Cannot cancel reservations, not logged in\n";
         }
         try {
-            conn.setAutoCommit(false);
-            find_cancel.setString(1, logginUser);
-            find_cancel.setInt(2, reservationId);
-            ResultSet result = find_cancel.executeQuery();
-            if (!result.next()){
-                conn.setAutoCommit(true);
+            int dayOfMonth = storage.cancel(logginUser, reservationId);
+            if (dayOfMonth == 0) {
                 return "Failed to cancel reservation " + reservationId + "\n";
-            } else {
-                int ifpaid = result.getInt(8);
-                if (ifpaid == 1) {
-                    check_balance.setString(1, logginUser);
-                    ResultSet result2 = check_balance.executeQuery();
-                    if (result2.next()) {
-                        int balance = result2.getInt(1);
-                        int cost = result.getInt(7);
-                        int refund = balance + cost;
-                        update_balance.setInt(1, refund);
-                        update_balance.setString(2, logginUser);
-                        update_balance.executeUpdate();
-                    }
-                }
-                int fid1 = result.getInt("fid1");
-                check_seats.setInt(1, fid1);
-                ResultSet seats = check_seats.executeQuery();
-                if (seats.next()){
-                    int remain = seats.getInt(1);
-                    update_seats.setInt(1, remain + 1);
-                    update_seats.setInt(2, fid1);
-                    update_seats.executeUpdate();
-                }
-
-                int ifdirect = result.getInt("ifdirect");
-                if (ifdirect == 0){
-                    int fid2 = result.getInt("fid2");
-                    check_seats.setInt(1, fid2);
-                    ResultSet seats2 = check_seats.executeQuery();
-                    if (seats2.next()){
-                        int remain = seats2.getInt(1);
-                        update_seats.setInt(1, remain + 1);
-                        update_seats.setInt(2, fid2);
-                        update_seats.executeUpdate();
-                    }
-                }
-
-                cancel_reservation.clearParameters();
-                cancel_reservation.setInt(1, reservationId);
-                cancel_reservation.executeUpdate();
-                conn.commit();
-                conn.setAutoCommit(true);
-                return "Canceled reservation "+ reservationId + "\n";
-            }
-        } catch (SQLException e) {
-            String errmsg = e.getMessage();
-            try {
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Failed to cancel reservation " + reservationId + "\n";
-            } catch (SQLException exp) {
-                String errmsg1 = exp.getMessage();
-                return "Rollback failed" + errmsg1;
-            }
-        } finally {
-            checkDanglingTransaction();
-        }
-    }
-
-    /**
-     * Example utility function that uses prepared statements
-     */
-    private int checkFlightCapacity(int fid) throws SQLException {
-        checkFlightCapacityStatement.clearParameters();
-        checkFlightCapacityStatement.setInt(1, fid);
-        ResultSet results = checkFlightCapacityStatement.executeQuery();
-        results.next();
-        int capacity = results.getInt("capacity");
-        results.close();
-
-        return capacity;
-    }
-
-    /**
-     * Throw IllegalStateException if transaction not completely complete, rollback.
-     *
-     */
-    private void checkDanglingTransaction() {
-        try {
-            try (ResultSet rs = tranCountStatement.executeQuery()) {
-                rs.next();
-                int count = rs.getInt("tran_count");
-                if (count > 0) {
-                    throw new IllegalStateException(
-                            "Transaction not fully commit/rollback. Number of transaction in process: " + count);
-                }
-            } finally {
-                conn.setAutoCommit(true);
             }
+            session().cancelledOn(dayOfMonth);
+            reservationCache.cancelled(logginUser, reservationId);
+            return "Canceled reservation "+ reservationId + "\n";
         } catch (SQLException e) {
-            throw new IllegalStateException("Database error", e);
+            return "Failed to cancel reservation " + reservationId + "\n";
         }
     }
 
-    private static boolean isDeadLock(SQLException ex) {
-        return ex.getErrorCode() == 1205;
-    }
-
-    // Generate the hash
-    private byte[] generateHash(String password, byte[] salt){
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            return hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-            throw new IllegalStateException();
-        }
-    }
-
-    private byte[] generateSalt() {
-        // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        return salt;
-    }
-
-    class Itinerary implements Comparable<Itinerary> {
+    static class Itinerary implements Comparable<Itinerary> {
         Flight firstFlight;
         Flight secondFlight;
         int itineraryID;
@@ -951,7 +589,7 @@ public class Query {
     /**
      * A class to store flight information.
      */
-    class Flight {
+    static class Flight {
         public int fid;
         public int dayOfMonth;
         public String carrierId;
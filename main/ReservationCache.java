@@ -0,0 +1,227 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Each user's reservations kept in memory, so that listing them again does not query the database.
+ *
+ * A user's list is read from the database the first time it is listed. After that book, pay and
+ * cancel update it in place once their transaction has committed. Users are evicted least recently
+ * used first when the cache is full.
+ *
+ * A list read from the database is only kept if no write for the user committed while it was being
+ * read: every write bumps a per-user stamp (striped by username hash), and {@link #fill} drops lists
+ * read under an older stamp. The cache only sees writes made through this JVM, so it must stay off
+ * when several application processes share the database.
+ *
+ * In verify mode every listing is also read from the database and compared, for running the test
+ * cases against the cache.
+ */
+class ReservationCache {
+    // Maximum number of users whose reservations are kept, 0 turns the cache off
+    static final String SIZE_PROPERTY = "flightapp.reservation_cache.size";
+    // Check every cached listing against the database
+    static final String VERIFY_PROPERTY = "flightapp.reservation_cache.verify";
+
+    private static final int STRIPES = 64;
+
+    private static final ReservationCache SHARED =
+            new ReservationCache(Integer.getInteger(SIZE_PROPERTY, 0), Boolean.getBoolean(VERIFY_PROPERTY));
+
+    /**
+     * One reservation that is not cancelled. Second is null for a direct flight.
+     */
+    static class Reservation {
+        final int id;
+        final boolean paid;
+        final Query.Flight first;
+        final Query.Flight second;
+
+        Reservation(int id, boolean paid, Query.Flight first, Query.Flight second) {
+            this.id = id;
+            this.paid = paid;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    private final int maxUsers;
+    private final boolean verify;
+    private final LinkedHashMap<String, List<Reservation>> users;
+    private final long[] stamps = new long[STRIPES];
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long mismatches;
+
+    ReservationCache(int maxUsers, boolean verify) {
+        this.maxUsers = maxUsers;
+        this.verify = verify;
+        this.users = new LinkedHashMap<String, List<Reservation>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Reservation>> eldest) {
+                if (size() > ReservationCache.this.maxUsers) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cache shared by all {@code Query} instances
+     */
+    static ReservationCache shared() {
+        return SHARED;
+    }
+
+    boolean isEnabled() {
+        return maxUsers > 0;
+    }
+
+    boolean isVerifying() {
+        return verify;
+    }
+
+    /**
+     * Returns the user's reservations ordered by ID, or null if they are not cached.
+     */
+    synchronized List<Reservation> get(String username) {
+        List<Reservation> list = users.get(username);
+        if (list == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(list);
+    }
+
+    /**
+     * The user's write stamp, to take before reading their reservations from the database.
+     */
+    synchronized long stamp(String username) {
+        return stamps[stripe(username)];
+    }
+
+    /**
+     * Keeps reservations read from the database, unless a write for the user has committed since
+     * {@code stamp} was taken.
+     */
+    synchronized void fill(String username, long stamp, List<Reservation> reservations) {
+        if (isEnabled() && stamps[stripe(username)] == stamp) {
+            users.put(username, new ArrayList<>(reservations));
+        }
+    }
+
+    /**
+     * A booking committed. Another session may have listed the reservation between the commit and
+     * this call, in which case it is cached already and is left as it is.
+     */
+    synchronized void booked(String username, Reservation reservation) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<Reservation> list = written(username);
+        if (list != null) {
+            int i = list.size();
+            while (i > 0 && list.get(i - 1).id > reservation.id) {
+                i--;
+            }
+            if (i == 0 || list.get(i - 1).id != reservation.id) {
+                list.add(i, reservation);
+            }
+        }
+    }
+
+    /**
+     * A payment committed.
+     */
+    synchronized void paid(String username, int reservationId) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<Reservation> list = written(username);
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                Reservation r = list.get(i);
+                if (r.id == reservationId) {
+                    list.set(i, new Reservation(r.id, true, r.first, r.second));
+                }
+            }
+        }
+    }
+
+    /**
+     * A cancellation committed.
+     */
+    synchronized void cancelled(String username, int reservationId) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<Reservation> list = written(username);
+        if (list != null) {
+            list.removeIf(r -> r.id == reservationId);
+        }
+    }
+
+    /**
+     * Forgets the user's list, for a committed write the cache cannot apply in place.
+     */
+    synchronized void invalidate(String username) {
+        if (!isEnabled()) {
+            return;
+        }
+        written(username);
+        users.remove(username);
+    }
+
+    /**
+     * Forgets every list, for when the tables are cleared.
+     */
+    synchronized void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i]++;
+        }
+        users.clear();
+    }
+
+    /**
+     * Records that a cached listing differed from the database, and drops the user's list.
+     */
+    synchronized void mismatch(String username) {
+        mismatches++;
+        users.remove(username);
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long mismatches() {
+        return mismatches;
+    }
+
+    synchronized int size() {
+        return users.size();
+    }
+
+    // Bumps the user's stamp and returns their list to update in place, if cached
+    private List<Reservation> written(String username) {
+        stamps[stripe(username)]++;
+        return users.get(username);
+    }
+
+    private static int stripe(String username) {
+        return Math.floorMod(username.hashCode(), STRIPES);
+    }
+}
@@ -0,0 +1,110 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Hands out reservation IDs from the single-row ReservationIds table instead of counting the rows
+ * of Reservations.
+ *
+ * In strict mode (the default) every booking increments the counter inside its own transaction.
+ * Only that one row is locked, never a range of Reservations, and a booking that rolls back gives
+ * its ID back, so IDs start at 1 and grow by 1 with each successful reservation.
+ *
+ * In block mode the JVM reserves {@code block_size} IDs at a time in a short transaction of its own
+ * and hands them out from memory, so most bookings never touch the counter. IDs stay unique across
+ * JVMs but are no longer gap free: IDs taken by failed bookings are skipped, and several JVMs
+ * interleave their blocks.
+ */
+class ReservationIdAllocator {
+    // "strict" or "block"
+    static final String MODE_PROPERTY = "flightapp.reservation_ids";
+    // IDs reserved at a time in block mode
+    static final String BLOCK_SIZE_PROPERTY = "flightapp.reservation_ids.block_size";
+
+    // Adds ? to the counter and returns the new value
+    static final String NEXT_RESERVEID =
+            "UPDATE ReservationIds SET lastID = lastID + ? OUTPUT inserted.lastID";
+
+    private static final ReservationIdAllocator SHARED = new ReservationIdAllocator(
+            !"block".equalsIgnoreCase(System.getProperty(MODE_PROPERTY, "strict")),
+            Integer.getInteger(BLOCK_SIZE_PROPERTY, 100));
+
+    private final boolean strict;
+    private final int blockSize;
+
+    // Next ID to hand out and the end (exclusive) of the current block
+    private int next;
+    private int limit;
+
+    ReservationIdAllocator(boolean strict, int blockSize) {
+        this.strict = strict;
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * The allocator shared by all {@code Query} instances
+     */
+    static ReservationIdAllocator shared() {
+        return SHARED;
+    }
+
+    boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Makes sure a block is available before a booking transaction starts. Must be called with
+     * auto-commit on, so the block is committed on its own. Does nothing in strict mode.
+     */
+    void prefetch(PreparedStatement nextReserveId) throws SQLException {
+        if (strict) {
+            return;
+        }
+        synchronized (this) {
+            if (next < limit) {
+                return;
+            }
+        }
+        int last = advance(nextReserveId, blockSize);
+        synchronized (this) {
+            if (next >= limit) {
+                next = last - blockSize + 1;
+                limit = last + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the ID for a booking, from inside the booking transaction.
+     */
+    int next(PreparedStatement nextReserveId) throws SQLException {
+        if (!strict) {
+            synchronized (this) {
+                if (next < limit) {
+                    return next++;
+                }
+            }
+        }
+        // strict mode, or another booking used up the prefetched block
+        return advance(nextReserveId, 1);
+    }
+
+    /**
+     * Forgets the current block, for when the tables are cleared.
+     */
+    synchronized void reset() {
+        next = 0;
+        limit = 0;
+    }
+
+    private static int advance(PreparedStatement nextReserveId, int count) throws SQLException {
+        nextReserveId.clearParameters();
+        nextReserveId.setInt(1, count);
+        try (ResultSet rs = nextReserveId.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("ReservationIds has no row, run createTables.sql");
+            }
+            return rs.getInt(1);
+        }
+    }
+}
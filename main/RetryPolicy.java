@@ -0,0 +1,183 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Re-runs a write transaction that lost a conflict with another session.
+ *
+ * Only conflicts are retried: deadlock victims (error 1205), snapshot update conflicts (3960),
+ * anything reporting SQLState 40001 (serialization failure), and duplicate key errors (2601, 2627)
+ * from two sessions inserting the same first row. Every other error is passed straight to the
+ * caller. An attempt is retried at most {@code max_attempts - 1} times, and before each retry the
+ * session sleeps for an exponentially growing delay with random jitter so that the transactions
+ * that collided do not collide again in lock step.
+ *
+ * Retries, give-ups and deadlocks are counted per command.
+ */
+class RetryPolicy {
+    // Attempts per command, including the first one
+    static final String MAX_ATTEMPTS_PROPERTY = "flightapp.retry.max_attempts";
+    // Delay before the first retry, doubled for each following one, in milliseconds
+    static final String BASE_DELAY_PROPERTY = "flightapp.retry.base_delay_ms";
+    // Upper bound of the delay, in milliseconds
+    static final String MAX_DELAY_PROPERTY = "flightapp.retry.max_delay_ms";
+
+    private static final RetryPolicy SHARED = new RetryPolicy(
+            Integer.getInteger(MAX_ATTEMPTS_PROPERTY, 5),
+            Long.getLong(BASE_DELAY_PROPERTY, 5L),
+            Long.getLong(MAX_DELAY_PROPERTY, 200L),
+            Thread::sleep);
+
+    /**
+     * One attempt at a transaction. It must leave the connection rolled back when it throws.
+     */
+    interface Attempt<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Waits between attempts, replaced in tests.
+     */
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * Counters of one command
+     */
+    static class Counters {
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong giveUps = new AtomicLong();
+        private final AtomicLong deadlocks = new AtomicLong();
+
+        long retries() {
+            return retries.get();
+        }
+
+        long giveUps() {
+            return giveUps.get();
+        }
+
+        long deadlocks() {
+            return deadlocks.get();
+        }
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Sleeper sleeper;
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Sleeper sleeper) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * The policy shared by all {@code Query} instances
+     */
+    static RetryPolicy shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs {@code attempt}, retrying conflicts. The last conflict is rethrown once the attempts are
+     * used up.
+     */
+    <T> T run(String command, Attempt<T> attempt) throws SQLException {
+        Counters c = counters(command);
+        for (int i = 1; ; i++) {
+            try {
+                return attempt.run();
+            } catch (SQLException e) {
+                if (isDeadlock(e)) {
+                    c.deadlocks.incrementAndGet();
+                }
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                if (i >= maxAttempts) {
+                    c.giveUps.incrementAndGet();
+                    retryEvent(command, i, e, true, 0);
+                    throw e;
+                }
+                c.retries.incrementAndGet();
+                long delay = delay(i);
+                retryEvent(command, i, e, false, delay);
+                try {
+                    sleeper.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    c.giveUps.incrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void retryEvent(String command, int attempt, SQLException e, boolean gaveUp, long delayMillis) {
+        Events.Retry event = new Events.Retry();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.attempt = attempt;
+            event.errorCode = e.getErrorCode();
+            event.deadlock = isDeadlock(e);
+            event.gaveUp = gaveUp;
+            event.delay = delayMillis;
+            event.commit();
+        }
+    }
+
+    /**
+     * Delay before retry number {@code retry} (from 1): the capped exponential delay, less a random
+     * part of up to half of it.
+     */
+    long delay(int retry) {
+        long delay = baseDelayMillis << Math.min(retry - 1, 20);
+        delay = Math.min(delay, maxDelayMillis);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    Counters counters(String command) {
+        return counters.computeIfAbsent(command, k -> new Counters());
+    }
+
+    /**
+     * Commands that have run through this policy
+     */
+    Set<String> commands() {
+        return new TreeSet<>(counters.keySet());
+    }
+
+    static boolean isRetryable(SQLException e) {
+        for (SQLException ex = e; ex != null; ex = ex.getNextException()) {
+            switch (ex.getErrorCode()) {
+                case 1205: // chosen as deadlock victim
+                case 3960: // snapshot isolation update conflict
+                case 2601: // duplicate key in unique index
+                case 2627: // duplicate primary key
+                    return true;
+                default:
+                    if ("40001".equals(ex.getSQLState())) {
+                        return true;
+                    }
+            }
+        }
+        return false;
+    }
+
+    static boolean isDeadlock(SQLException e) {
+        for (SQLException ex = e; ex != null; ex = ex.getNextException()) {
+            if (ex.getErrorCode() == 1205) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
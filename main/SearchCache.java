@@ -0,0 +1,208 @@
+package flightapp;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Search results shared by every session in the JVM, keyed by (origin, destination, direct, day).
+ *
+ * An entry keeps the raw inputs of the largest search made for its key: the direct flights and the
+ * one-hop itineraries in query order. A search for fewer itineraries takes a prefix of both lists,
+ * which is exactly what the two queries would have returned for the smaller count. Once both
+ * lists came back shorter than asked for the entry is complete and serves any count.
+ *
+ * Entries are evicted least recently used first when the cache is full and expire after a fixed
+ * time to live. Flights rarely change, so anything that does change them should call
+ * {@link #invalidate} or {@link #invalidateAll}.
+ */
+class SearchCache {
+    // Maximum number of cached routes, 0 turns the cache off
+    static final String SIZE_PROPERTY = "flightapp.search_cache.size";
+    // Time to live of an entry in milliseconds
+    static final String TTL_PROPERTY = "flightapp.search_cache.ttl_ms";
+
+    private static final SearchCache SHARED =
+            new SearchCache(Integer.getInteger(SIZE_PROPERTY, 0), Long.getLong(TTL_PROPERTY, 10 * 60 * 1000L),
+                    System::currentTimeMillis);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LinkedHashMap<Key, Cached> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    SearchCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() > SearchCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The cache shared by all {@code Query} instances
+     */
+    static SearchCache shared() {
+        return SHARED;
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the search inputs for {@code count} itineraries, or null if they are not cached.
+     */
+    synchronized Result get(String originCity, String destCity, boolean directFlight, int dayOfMonth, int count) {
+        Key key = new Key(originCity, destCity, directFlight, dayOfMonth);
+        Cached entry = entries.get(key);
+        if (entry != null && clock.getAsLong() - entry.createdAt >= ttlMillis) {
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null || (count > entry.count && !entry.isComplete(directFlight))) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int direct = Math.min(count, entry.direct.size());
+        int indirect = directFlight ? 0 : Math.min(count - direct, entry.indirect.size());
+        return new Result(copy(entry.direct.subList(0, direct)), copy(entry.indirect.subList(0, indirect)));
+    }
+
+    /**
+     * Remembers the direct and one-hop rows a search for {@code count} itineraries read. Keeps the
+     * existing entry if it already covers at least as many itineraries.
+     */
+    synchronized void put(String originCity, String destCity, boolean directFlight, int dayOfMonth, int count,
+                          List<Query.Itinerary> direct, List<Query.Itinerary> indirect) {
+        if (!isEnabled()) {
+            return;
+        }
+        Key key = new Key(originCity, destCity, directFlight, dayOfMonth);
+        Cached existing = entries.get(key);
+        if (existing != null && existing.count >= count && clock.getAsLong() - existing.createdAt < ttlMillis) {
+            return;
+        }
+        entries.put(key, new Cached(count, copy(direct), copy(indirect), clock.getAsLong()));
+    }
+
+    /**
+     * Drops both search modes of one route and day.
+     */
+    synchronized void invalidate(String originCity, String destCity, int dayOfMonth) {
+        entries.remove(new Key(originCity, destCity, true, dayOfMonth));
+        entries.remove(new Key(originCity, destCity, false, dayOfMonth));
+    }
+
+    synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /*
+     * Itinerary.toString(int) writes the itinerary number into the object, so sessions never share
+     * the cached instances themselves.
+     */
+    private static List<Query.Itinerary> copy(List<Query.Itinerary> itineraries) {
+        List<Query.Itinerary> result = new ArrayList<>(itineraries.size());
+        for (Query.Itinerary itinerary : itineraries) {
+            Query.Itinerary c = new Query.Itinerary();
+            c.firstFlight = itinerary.firstFlight;
+            c.secondFlight = itinerary.secondFlight;
+            result.add(c);
+        }
+        return result;
+    }
+
+    /**
+     * Cached inputs for one search: direct flights and one-hop itineraries, each in query order.
+     */
+    static class Result {
+        final List<Query.Itinerary> direct;
+        final List<Query.Itinerary> indirect;
+
+        Result(List<Query.Itinerary> direct, List<Query.Itinerary> indirect) {
+            this.direct = direct;
+            this.indirect = indirect;
+        }
+    }
+
+    private static class Cached {
+        final int count;
+        final List<Query.Itinerary> direct;
+        final List<Query.Itinerary> indirect;
+        final long createdAt;
+
+        Cached(int count, List<Query.Itinerary> direct, List<Query.Itinerary> indirect, long createdAt) {
+            this.count = count;
+            this.direct = direct;
+            this.indirect = indirect;
+            this.createdAt = createdAt;
+        }
+
+        // Both queries returned fewer rows than asked for, so there is nothing beyond them
+        boolean isComplete(boolean directFlight) {
+            if (direct.size() >= count) {
+                return false;
+            }
+            return directFlight || indirect.size() < count - direct.size();
+        }
+    }
+
+    private static class Key {
+        final String originCity;
+        final String destCity;
+        final boolean directFlight;
+        final int dayOfMonth;
+
+        Key(String originCity, String destCity, boolean directFlight, int dayOfMonth) {
+            this.originCity = originCity;
+            this.destCity = destCity;
+            this.directFlight = directFlight;
+            this.dayOfMonth = dayOfMonth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return directFlight == other.directFlight && dayOfMonth == other.dayOfMonth
+                    && originCity.equals(other.originCity) && destCity.equals(other.destCity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(originCity, destCity, directFlight, dayOfMonth);
+        }
+    }
+}
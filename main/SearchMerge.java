@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Streaming merge of the direct and one-hop search results.
+ *
+ * Both inputs arrive already ordered, so the final {@code Itinerary.compareTo} order is produced by
+ * a two-way merge that pulls one row at a time instead of buffering everything and sorting it. At
+ * most {@code limit} itineraries are handed out, and each one can be rendered as soon as it is
+ * returned because nothing later can sort before it.
+ */
+class SearchMerge {
+
+    /**
+     * A pull-based stream of itineraries, returns null once exhausted.
+     */
+    interface Source {
+        Query.Itinerary next() throws SQLException;
+    }
+
+    private final Source left;
+    private final Source right;
+    private Query.Itinerary leftHead;
+    private Query.Itinerary rightHead;
+    private int remaining;
+    private boolean started;
+
+    /**
+     * @param left  itineraries in {@code compareTo} order
+     * @param right itineraries in {@code compareTo} order
+     * @param limit maximum number of itineraries to return
+     */
+    SearchMerge(Source left, Source right, int limit) {
+        this.left = left;
+        this.right = right;
+        this.remaining = limit;
+    }
+
+    /**
+     * Returns the next itinerary in {@code compareTo} order, or null when done.
+     */
+    Query.Itinerary next() throws SQLException {
+        if (!started) {
+            leftHead = left.next();
+            rightHead = right.next();
+            started = true;
+        }
+        if (remaining <= 0 || (leftHead == null && rightHead == null)) {
+            return null;
+        }
+        remaining--;
+        Query.Itinerary result;
+        if (rightHead == null || (leftHead != null && leftHead.compareTo(rightHead) <= 0)) {
+            result = leftHead;
+            leftHead = left.next();
+        } else {
+            result = rightHead;
+            rightHead = right.next();
+        }
+        return result;
+    }
+
+    /**
+     * A source over an already ordered list.
+     */
+    static Source of(List<Query.Itinerary> itineraries) {
+        Iterator<Query.Itinerary> it = itineraries.iterator();
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Reorders a source sorted by total time (as SEARCH_INDIRECT is) into {@code compareTo} order.
+     * Only one run of equal total time is buffered at a time.
+     */
+    static Source byTotalTime(Source in) {
+        return new Source() {
+            private final ArrayDeque<Query.Itinerary> run = new ArrayDeque<>();
+            private Query.Itinerary pending;
+            private boolean started;
+
+            @Override
+            public Query.Itinerary next() throws SQLException {
+                if (!started) {
+                    pending = in.next();
+                    started = true;
+                }
+                if (run.isEmpty() && pending != null) {
+                    List<Query.Itinerary> buffer = new ArrayList<>();
+                    int time = pending.totalTime();
+                    while (pending != null && pending.totalTime() == time) {
+                        buffer.add(pending);
+                        pending = in.next();
+                    }
+                    buffer.sort(Query.Itinerary::compareTo);
+                    run.addAll(buffer);
+                }
+                return run.poll();
+            }
+        };
+    }
+}
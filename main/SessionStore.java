@@ -0,0 +1,311 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-session state (logged in user and last search results) for every {@code Query} in the JVM.
+ *
+ * Sessions live in a concurrent map keyed by a session id, so sessions never contend with each
+ * other. A session that has been idle for longer than the idle timeout is evicted, and the store
+ * never holds more than its maximum number of sessions; when it is full the least recently used
+ * sixteenth of the sessions goes at once, so the scan that finds them is paid once per many opens
+ * rather than on every one.
+ *
+ * Search results are kept as one int array with a fixed stride per itinerary rather than as
+ * {@code Itinerary} and {@code Flight} objects, which is all booking needs and a fraction of the
+ * size.
+ */
+class SessionStore {
+    // Idle time in milliseconds after which a session is evicted
+    static final String IDLE_PROPERTY = "flightapp.session.idle_ms";
+    // Maximum number of sessions kept at once
+    static final String MAX_PROPERTY = "flightapp.session.max";
+
+    private static final SessionStore SHARED =
+            new SessionStore(Integer.getInteger(MAX_PROPERTY, 200_000), Long.getLong(IDLE_PROPERTY, 30 * 60 * 1000L));
+
+    // Rough object sizes on a 64-bit JVM with compressed oops, used for the memory estimate
+    private static final int SESSION_BYTES = 48;
+    private static final int MAP_ENTRY_BYTES = 48;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int STRING_BYTES = 40;
+    // A full store evicts maxSessions / EVICT_BATCH_DIVISOR sessions at once, at least one
+    private static final int EVICT_BATCH_DIVISOR = 16;
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong();
+    private final int maxSessions;
+    private final long idleMillis;
+
+    SessionStore(int maxSessions, long idleMillis) {
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * The store shared by all {@code Query} instances
+     */
+    static SessionStore shared() {
+        return SHARED;
+    }
+
+    /**
+     * Opens a new, logged out session.
+     */
+    Session open() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last > Math.min(idleMillis, 1000) && lastSweep.compareAndSet(last, now)) {
+            evictIdle(now);
+        }
+        if (sessions.size() >= maxSessions) {
+            evictLeastRecentlyUsed();
+        }
+        Session session = new Session(nextId.incrementAndGet(), now);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Returns the session and marks it as used, or null if it was closed or evicted.
+     */
+    Session get(long id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastAccess > idleMillis) {
+            if (sessions.remove(id, session)) {
+                evictions.incrementAndGet();
+            }
+            return null;
+        }
+        session.lastAccess = now;
+        return session;
+    }
+
+    void close(long id) {
+        sessions.remove(id);
+    }
+
+    /**
+     * Removes every session that has been idle for longer than the idle timeout.
+     */
+    void evictIdle(long now) {
+        for (Session session : sessions.values()) {
+            if (now - session.lastAccess > idleMillis && sessions.remove(session.id, session)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * Evicts the batch of sessions used longest ago, and as many more as it takes to get below the
+     * maximum. Sessions used while this runs may survive in place of others, which only makes the
+     * batch smaller.
+     */
+    private void evictLeastRecentlyUsed() {
+        int batch = Math.max(1, maxSessions / EVICT_BATCH_DIVISOR) + sessions.size() - maxSessions;
+        long[] lastAccess = new long[sessions.size()];
+        int n = 0;
+        for (Session session : sessions.values()) {
+            if (n == lastAccess.length) {
+                break;
+            }
+            lastAccess[n++] = session.lastAccess;
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(lastAccess, 0, n);
+        long cutoff = lastAccess[Math.min(batch, n) - 1];
+        int evicted = 0;
+        for (Session session : sessions.values()) {
+            if (evicted == batch) {
+                break;
+            }
+            if (session.lastAccess <= cutoff && sessions.remove(session.id, session)) {
+                evictions.incrementAndGet();
+                evicted++;
+            }
+        }
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Estimated heap used by all sessions, including the map entries that hold them.
+     */
+    long estimatedBytes() {
+        long total = 0;
+        for (Session session : sessions.values()) {
+            total += session.estimatedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Estimated heap per session, the number to multiply by the expected concurrent sessions.
+     */
+    long estimatedBytesPerSession() {
+        int count = sessions.size();
+        return count == 0 ? new Session(0, 0).estimatedBytes() : estimatedBytes() / count;
+    }
+
+    /**
+     * State of one session. Only the thread running the session's commands changes it.
+     */
+    static class Session {
+        // Slots of one itinerary in the search result array
+        private static final int FID1 = 0;
+        private static final int FID2 = 1;
+        private static final int DAY = 2;
+        private static final int COST = 3;
+        private static final int CAPACITY1 = 4;
+        private static final int CAPACITY2 = 5;
+        private static final int STRIDE = 6;
+        private static final int[] NO_RESULTS = new int[0];
+
+        final long id;
+        volatile long lastAccess;
+        private volatile String username;
+        private volatile int[] itineraries = NO_RESULTS;
+        // Bit d - 1 is set when the user holds a reservation on day d
+        private volatile int bookedDays;
+
+        Session(long id, long now) {
+            this.id = id;
+            this.lastAccess = now;
+        }
+
+        /**
+         * The logged in user, or null
+         */
+        String username() {
+            return username;
+        }
+
+        /**
+         * Logs the session in. Searches made before logging in do not carry over.
+         */
+        void login(String username) {
+            login(username, 0);
+        }
+
+        /**
+         * Logs the session in with the days the user already has reservations on, as a bitmap.
+         */
+        void login(String username, int bookedDays) {
+            this.username = username;
+            this.itineraries = NO_RESULTS;
+            this.bookedDays = bookedDays;
+        }
+
+        /**
+         * True if the user has a reservation on the day, as of login or the last refresh and this
+         * session's own bookings and cancellations.
+         */
+        boolean hasBookingOn(int dayOfMonth) {
+            return (bookedDays & dayBit(dayOfMonth)) != 0;
+        }
+
+        void bookedOn(int dayOfMonth) {
+            bookedDays |= dayBit(dayOfMonth);
+        }
+
+        void cancelledOn(int dayOfMonth) {
+            bookedDays &= ~dayBit(dayOfMonth);
+        }
+
+        /**
+         * Replaces the days booked with the ones read from storage, which include the bookings and
+         * cancellations made by the user's other sessions.
+         */
+        void refreshBookedDays(int bookedDays) {
+            this.bookedDays = bookedDays;
+        }
+
+        /**
+         * Replaces the last search results, itinerary i being the i-th of the list.
+         */
+        void setItineraries(List<Query.Itinerary> results) {
+            int[] encoded = new int[results.size() * STRIDE];
+            for (int i = 0; i < results.size(); i++) {
+                Query.Itinerary itinerary = results.get(i);
+                int base = i * STRIDE;
+                encoded[base + FID1] = itinerary.firstFlight.fid;
+                encoded[base + DAY] = itinerary.firstFlight.dayOfMonth;
+                encoded[base + COST] = itinerary.totalCost();
+                encoded[base + CAPACITY1] = itinerary.firstFlight.capacity;
+                if (itinerary.isDirect()) {
+                    encoded[base + FID2] = -1;
+                } else {
+                    encoded[base + FID2] = itinerary.secondFlight.fid;
+                    encoded[base + CAPACITY2] = itinerary.secondFlight.capacity;
+                }
+            }
+            this.itineraries = encoded;
+        }
+
+        boolean hasItinerary(int i) {
+            return i >= 0 && i < itineraries.length / STRIDE;
+        }
+
+        int firstFid(int i) {
+            return itineraries[i * STRIDE + FID1];
+        }
+
+        // -1 for a direct itinerary
+        int secondFid(int i) {
+            return itineraries[i * STRIDE + FID2];
+        }
+
+        boolean isDirect(int i) {
+            return secondFid(i) < 0;
+        }
+
+        int dayOfMonth(int i) {
+            return itineraries[i * STRIDE + DAY];
+        }
+
+        int cost(int i) {
+            return itineraries[i * STRIDE + COST];
+        }
+
+        int firstCapacity(int i) {
+            return itineraries[i * STRIDE + CAPACITY1];
+        }
+
+        int secondCapacity(int i) {
+            return itineraries[i * STRIDE + CAPACITY2];
+        }
+
+        boolean hasCapacity(int i) {
+            return firstCapacity(i) > 0 && (isDirect(i) || secondCapacity(i) > 0);
+        }
+
+        static int dayBit(int dayOfMonth) {
+            return 1 << (dayOfMonth - 1);
+        }
+
+        long estimatedBytes() {
+            long bytes = SESSION_BYTES + MAP_ENTRY_BYTES + ARRAY_HEADER_BYTES + 4L * itineraries.length;
+            String user = username;
+            if (user != null) {
+                bytes += STRING_BYTES + user.length();
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Where users, reservations, seats and flights are kept.
+ *
+ * {@code Query} keeps the session state and the caches and renders the responses; everything it
+ * reads or writes goes through one of these. Every method is one transaction: a write either
+ * happens in full or not at all, and concurrent calls behave as if they ran one after another.
+ * Failures are reported as SQLException whatever the backend.
+ *
+ * -Dflightapp.storage picks the backend: "jdbc" (the default) for the SQL Server database in
+ * dbconn.properties, or "memory" for a database held in this JVM, see MemoryStorage.
+ */
+interface Storage {
+    String BACKEND_PROPERTY = "flightapp.storage";
+
+    // book results other than a reservation ID
+    int FLIGHT_FULL = -1;
+    int SAME_DAY = -2;
+
+    /**
+     * What logging in needs to know about a user.
+     */
+    class User {
+        final byte[] salt;
+        final byte[] hash;
+        final int bookedDays;
+
+        User(byte[] salt, byte[] hash, int bookedDays) {
+            this.salt = salt;
+            this.hash = hash;
+            this.bookedDays = bookedDays;
+        }
+    }
+
+    /**
+     * Outcome of paying: the new balance if paid, otherwise whether the reservation was found and,
+     * if it was, its cost and the balance that did not cover it.
+     */
+    class Payment {
+        final boolean found;
+        final boolean paid;
+        final int cost;
+        final int balance;
+
+        private Payment(boolean found, boolean paid, int cost, int balance) {
+            this.found = found;
+            this.paid = paid;
+            this.cost = cost;
+            this.balance = balance;
+        }
+
+        static Payment notFound() {
+            return new Payment(false, false, 0, 0);
+        }
+
+        static Payment insufficient(int cost, int balance) {
+            return new Payment(true, false, cost, balance);
+        }
+
+        static Payment paid(int balance) {
+            return new Payment(true, true, 0, balance);
+        }
+    }
+
+    /**
+     * Opens the backend chosen by {@code flightapp.storage}. The credentials are only used by the
+     * JDBC backend, null ones mean dbconn.properties.
+     */
+    static Storage open(String serverURL, String dbName, String adminName, String password)
+            throws SQLException, IOException {
+        String backend = System.getProperty(BACKEND_PROPERTY, "jdbc");
+        switch (backend.toLowerCase()) {
+            case "memory":
+                return MemoryStorage.shared();
+            case "jdbc":
+                return new JdbcStorage(serverURL, dbName, adminName, password);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + backend + ", expected jdbc or memory");
+        }
+    }
+
+    /**
+     * Deletes all users and reservations and frees every seat. Flights stay.
+     */
+    void clear() throws SQLException;
+
+    /**
+     * Returns the user, or null if there is none with that name.
+     */
+    User findUser(String username) throws SQLException;
+
+    boolean userExists(String username) throws SQLException;
+
+    /**
+     * Adds a user with no bookings.
+     *
+     * @return false if the name is taken
+     */
+    boolean createUser(String username, byte[] salt, byte[] hash, int balance) throws SQLException;
+
+    /**
+     * Up to {@code limit} itineraries on the day, ordered like the search output: the direct
+     * flights by (time, fid) first, then, unless {@code directOnly}, one-hop itineraries by (total
+     * time, fid1, fid2) filling the remaining places.
+     */
+    List<Query.Itinerary> search(String originCity, String destCity, boolean directOnly, int dayOfMonth,
+                                 int limit) throws SQLException;
+
+    /**
+     * Books one seat on each flight for the user, claiming the day. {@code fid2} is -1 for a direct
+     * itinerary. The capacities are the flights' seats, for the first booking of a flight.
+     *
+     * @return the new reservation ID, {@link #FLIGHT_FULL} or {@link #SAME_DAY}
+     */
+    int book(String username, int itineraryId, int dayOfMonth, int cost, int fid1, int capacity1, int fid2,
+             int capacity2) throws SQLException;
+
+    /**
+     * Pays an unpaid reservation of the user out of their balance.
+     */
+    Payment pay(String username, int reservationId) throws SQLException;
+
+    /**
+     * Cancels a reservation of the user, refunding it if paid and freeing its seats and day.
+     *
+     * @return the reservation's day of the month, or 0 if the user has no such reservation
+     */
+    int cancel(String username, int reservationId) throws SQLException;
+
+    /**
+     * The user's reservations that are not cancelled, ordered by ID, with their flights.
+     */
+    List<ReservationCache.Reservation> reservations(String username) throws SQLException;
+
+    /**
+     * Releases what this session holds. A shared backend stays open.
+     */
+    void close() throws SQLException;
+}
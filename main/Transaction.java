@@ -0,0 +1,55 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * A database transaction scoped to a try-with-resources block.
+ *
+ * {@link #begin} turns auto-commit off. Leaving the block without {@link #commit} rolls the
+ * transaction back, whether by returning early or by an exception, and auto-commit is back on
+ * afterwards either way. The state is tracked on the client, so ending a command does not need to
+ * ask the server whether a transaction is still open.
+ */
+class Transaction implements AutoCloseable {
+    private final Connection conn;
+    private boolean done;
+
+    private Transaction(Connection conn) {
+        this.conn = conn;
+    }
+
+    static Transaction begin(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        return new Transaction(conn);
+    }
+
+    void commit() throws SQLException {
+        conn.commit();
+        Metrics.commit();
+        done = true;
+        conn.setAutoCommit(true);
+    }
+
+    void rollback() throws SQLException {
+        done = true;
+        Events.Rollback event = new Events.Rollback();
+        event.begin();
+        try {
+            conn.rollback();
+            Metrics.rollback();
+            event.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Rolls back unless the transaction was committed or rolled back already.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!done) {
+            rollback();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks sizing, waiting, validation and reset of the connection pool against stub connections.
+ */
+public class ConnectionPoolTest {
+
+  /**
+   * State behind one stub connection
+   */
+  static class Stub {
+    boolean valid = true;
+    boolean autoCommit = true;
+    boolean closed;
+    int rollbacks;
+  }
+
+  private final List<Stub> stubs = new ArrayList<>();
+
+  private Connection open() {
+    Stub stub = new Stub();
+    stubs.add(stub);
+    return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "isValid":
+                  return stub.valid;
+                case "getAutoCommit":
+                  return stub.autoCommit;
+                case "setAutoCommit":
+                  stub.autoCommit = (Boolean) args[0];
+                  return null;
+                case "rollback":
+                  stub.rollbacks++;
+                  return null;
+                case "close":
+                  stub.closed = true;
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  @Test
+  public void minConnectionsOpenUpFront() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(this::open, 2, 4, 10, true);
+    assertEquals(2, pool.openConnections());
+    assertEquals(2, pool.idleConnections());
+  }
+
+  @Test
+  public void borrowTimesOutWhenExhausted() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(this::open, 0, 1, 10, true);
+    ConnectionPool.PooledConnection first = pool.borrow();
+    try {
+      pool.borrow();
+      fail("second borrow should time out");
+    } catch (SQLException e) {
+      assertEquals(1, pool.timeouts());
+    }
+    pool.release(first);
+    assertSame(first, pool.borrow());
+    assertEquals(1, pool.openConnections());
+  }
+
+  @Test
+  public void invalidConnectionsAreReplaced() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(this::open, 1, 1, 10, true);
+    stubs.get(0).valid = false;
+    ConnectionPool.PooledConnection pooled = pool.borrow();
+    assertTrue(stubs.get(0).closed);
+    assertEquals(2, stubs.size());
+    assertEquals(1, pool.invalidConnections());
+    assertEquals(1, pool.openConnections());
+    pool.release(pooled);
+  }
+
+  @Test
+  public void releaseRollsBackOpenTransaction() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(this::open, 0, 1, 10, false);
+    ConnectionPool.PooledConnection pooled = pool.borrow();
+    pooled.connection.setAutoCommit(false);
+    pool.release(pooled);
+    assertEquals(1, stubs.get(0).rollbacks);
+    assertTrue(stubs.get(0).autoCommit);
+    assertEquals(0, pool.activeConnections());
+  }
+
+  @Test
+  public void connectionsReturnedAfterCloseAreClosed() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(this::open, 1, 2, 10, false);
+    ConnectionPool.PooledConnection pooled = pool.borrow();
+    pool.close();
+    assertFalse(stubs.get(0).closed);
+    pool.release(pooled);
+    assertTrue(stubs.get(0).closed);
+    assertEquals(0, pool.idleConnections());
+    assertEquals(0, pool.openConnections());
+    try {
+      pool.borrow();
+      fail("a closed pool should not hand out connections");
+    } catch (SQLException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void idleConnectionsBeyondMinAreClosed() throws Exception {
+    ConnectionPool pool = new ConnectionPool(this::open, 1, 3, 10, false, 20);
+    List<ConnectionPool.PooledConnection> burst = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      burst.add(pool.borrow());
+    }
+    for (ConnectionPool.PooledConnection pooled : burst) {
+      pool.release(pooled);
+    }
+    assertEquals(3, pool.openConnections());
+    Thread.sleep(40);
+    pool.release(pool.borrow());
+    assertEquals(1, pool.openConnections());
+    assertEquals(2, stubs.stream().filter(stub -> stub.closed).count());
+  }
+}
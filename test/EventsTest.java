@@ -0,0 +1,64 @@
+package flightapp;
+
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that statements and commands show up in a Flight Recorder recording.
+ */
+public class EventsTest {
+  @Test
+  public void recordsStatementsWithTheirRows() throws Exception {
+    List<RecordedEvent> events = record(() -> {
+      PreparedStatement statement = MeteredStatement.wrap("find_user", StubStatements.returning(3));
+      try (ResultSet rows = statement.executeQuery()) {
+        while (rows.next()) {
+        }
+      }
+      statement.executeUpdate();
+    }, "flightapp.Statement");
+
+    assertEquals(2, events.size());
+    assertEquals("find_user", events.get(0).getString("statement"));
+    assertEquals(3, events.get(0).getLong("rows"));
+    assertEquals(1, events.get(1).getLong("rows"));
+  }
+
+  @Test
+  public void recordsCommandNamesWithoutArgumentsAndUnknownOnesAsOther() throws Exception {
+    List<RecordedEvent> events = record(() -> FlightService.execute(null, "fly to \"Boston MA\""),
+        "flightapp.Command");
+
+    assertEquals(1, events.size());
+    assertEquals(Metrics.OTHER, events.get(0).getString("command"));
+    assertFalse(events.get(0).getBoolean("succeeded"));
+  }
+
+  private interface Body {
+    void run() throws Exception;
+  }
+
+  // Runs body with the named event on and returns what was recorded, in order
+  private static List<RecordedEvent> record(Body body, String event) throws Exception {
+    Path file = Files.createTempFile("events", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(event).withoutThreshold();
+      recording.start();
+      body.run();
+      recording.stop();
+      recording.dump(file);
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+      events.sort(Comparator.comparing(RecordedEvent::getStartTime));
+      return events;
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks round trips, bulk loading, CLOCK eviction and the hit counters of the flight catalog.
+ */
+public class FlightCatalogTest {
+
+  private static Query.Flight flight(int fid) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = 1 + fid % 28;
+    f.carrierId = fid % 2 == 0 ? "AS" : "WN";
+    f.flightNum = String.valueOf(100 + fid);
+    f.originCity = "Seattle WA";
+    f.destCity = "Boston MA";
+    f.time = 200 + fid;
+    f.capacity = fid % 20;
+    f.price = 300 + fid;
+    return f;
+  }
+
+  @Test
+  public void returnsWhatWasPut() {
+    FlightCatalog catalog = new FlightCatalog(4);
+    catalog.put(flight(7));
+    assertEquals(flight(7).toString(), catalog.get(7).toString());
+    assertNull(catalog.get(8));
+    assertEquals(1, catalog.hits());
+    assertEquals(1, catalog.misses());
+    assertEquals(0.5, catalog.hitRate(), 1e-9);
+  }
+
+  @Test
+  public void loadsOnlyMissingFlightsInOneCall() throws SQLException {
+    FlightCatalog catalog = new FlightCatalog(10);
+    catalog.put(flight(1));
+    List<int[]> calls = new ArrayList<>();
+    Map<Integer, Query.Flight> flights = catalog.getAll(new int[]{1, 2, 3, 2, 99}, fids -> {
+      calls.add(fids);
+      List<Query.Flight> loaded = new ArrayList<>();
+      for (int fid : fids) {
+        if (fid != 99) {
+          loaded.add(flight(fid));
+        }
+      }
+      return loaded;
+    });
+    assertEquals(1, calls.size());
+    assertArrayEquals(new int[]{2, 3, 99}, calls.get(0));
+    assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), flights.keySet());
+    assertEquals(flight(3).toString(), flights.get(3).toString());
+
+    // now cached, the loader is not called again
+    catalog.getAll(new int[]{2, 3}, fids -> {
+      throw new AssertionError("should not load");
+    });
+    assertEquals(3, catalog.size());
+  }
+
+  @Test
+  public void evictsFlightsNotReadSinceLastPass() {
+    FlightCatalog catalog = new FlightCatalog(3);
+    catalog.put(flight(1));
+    catalog.put(flight(2));
+    catalog.put(flight(3));
+    catalog.get(1);
+    catalog.put(flight(4));
+    assertNotNull(catalog.get(1));
+    assertNull(catalog.get(2));
+    assertNotNull(catalog.get(4));
+    assertEquals(1, catalog.evictions());
+    assertEquals(3, catalog.size());
+  }
+
+  @Test
+  public void putAgainKeepsFlightFromEviction() {
+    FlightCatalog catalog = new FlightCatalog(3);
+    catalog.put(flight(1));
+    catalog.put(flight(2));
+    catalog.put(flight(3));
+    // a search showing flight 1 again puts it again
+    catalog.put(flight(1));
+    catalog.put(flight(4));
+    assertNotNull(catalog.get(1));
+    assertNull(catalog.get(2));
+    assertEquals(3, catalog.size());
+  }
+
+  @Test
+  public void disabledCatalogKeepsNothing() {
+    FlightCatalog catalog = new FlightCatalog(0);
+    assertFalse(catalog.isEnabled());
+    catalog.put(flight(1));
+    assertNull(catalog.get(1));
+  }
+}
@@ -0,0 +1,148 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the in-memory flight index returns exactly what the search queries would.
+ */
+public class FlightIndexTest {
+  private static final String[] CITIES = {"Seattle WA", "Boston MA", "St. Louis MO", "Chicago IL", "Denver CO"};
+  private static final String[] CARRIERS = {"AS", "B6", "WN", "UA"};
+
+  private List<int[]> flights;
+  private FlightIndex index;
+
+  @Before
+  public void buildIndex() {
+    Random random = new Random(414);
+    flights = new ArrayList<>();
+    FlightIndex.Builder builder = new FlightIndex.Builder();
+    for (int fid = 1; fid <= 600; fid++) {
+      int origin = random.nextInt(CITIES.length);
+      int dest = random.nextInt(CITIES.length);
+      // few distinct durations so that ties on time are common
+      int[] f = {fid, 1 + random.nextInt(3), random.nextInt(CARRIERS.length), random.nextInt(2000), origin, dest,
+              100 + 10 * random.nextInt(10), random.nextInt(20), 100 + random.nextInt(900)};
+      flights.add(f);
+      builder.add(f[0], f[1], CARRIERS[f[2]], f[3], CITIES[f[4]], CITIES[f[5]], f[6], f[7], f[8]);
+    }
+    index = builder.build();
+  }
+
+  @Test
+  public void directMatchesQueryOrder() {
+    for (int day = 1; day <= 3; day++) {
+      for (int o = 0; o < CITIES.length; o++) {
+        for (int d = 0; d < CITIES.length; d++) {
+          for (int k : new int[]{1, 5, 50}) {
+            assertEquals(expectedDirect(o, d, day, k),
+                    render(index.searchDirect(CITIES[o], CITIES[d], day, k)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void indirectMatchesQueryOrder() {
+    for (int day = 1; day <= 3; day++) {
+      for (int o = 0; o < CITIES.length; o++) {
+        for (int d = 0; d < CITIES.length; d++) {
+          for (int k : new int[]{1, 7, 100}) {
+            assertEquals(expectedIndirect(o, d, day, k),
+                    render(index.searchIndirect(CITIES[o], CITIES[d], day, k)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unknownCityHasNoFlights() {
+    assertEquals(0, index.searchDirect("Nowhere", CITIES[0], 1, 10).size());
+    assertEquals(0, index.searchIndirect(CITIES[0], "Nowhere", 1, 10).size());
+  }
+
+  @Test
+  public void dayWithoutFlightsFindsNothingFromOtherCities() {
+    // days past 31 or below 1 must not reach another city's flights
+    for (int day : new int[]{0, -1, 4, 31, 32, 33, 35, 40, 64, -30, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+      for (int o = 0; o < CITIES.length; o++) {
+        for (int d = 0; d < CITIES.length; d++) {
+          assertEquals(0, index.searchDirect(CITIES[o], CITIES[d], day, 50).size());
+          assertEquals(0, index.searchIndirect(CITIES[o], CITIES[d], day, 50).size());
+        }
+      }
+    }
+  }
+
+  // SELECT TOP(k) ... ORDER BY actual_time, fid
+  private String expectedDirect(int o, int d, int day, int k) {
+    List<int[]> rows = new ArrayList<>();
+    for (int[] f : flights) {
+      if (f[4] == o && f[5] == d && f[1] == day) {
+        rows.add(f);
+      }
+    }
+    rows.sort(Comparator.<int[]>comparingInt(f -> f[6]).thenComparingInt(f -> f[0]));
+    List<Query.Itinerary> result = new ArrayList<>();
+    for (int[] f : rows.subList(0, Math.min(k, rows.size()))) {
+      result.add(itinerary(f, null));
+    }
+    return render(result);
+  }
+
+  // SELECT TOP(k) ... FROM Flights F1, Flights F2 ... ORDER BY time1 + time2, fid1, fid2
+  private String expectedIndirect(int o, int d, int day, int k) {
+    List<int[][]> pairs = new ArrayList<>();
+    for (int[] f1 : flights) {
+      for (int[] f2 : flights) {
+        if (f1[4] == o && f1[5] == f2[4] && f2[5] == d && f1[1] == day && f2[1] == day) {
+          pairs.add(new int[][]{f1, f2});
+        }
+      }
+    }
+    pairs.sort(Comparator.<int[][]>comparingInt(p -> p[0][6] + p[1][6])
+            .thenComparingInt(p -> p[0][0]).thenComparingInt(p -> p[1][0]));
+    List<Query.Itinerary> result = new ArrayList<>();
+    for (int[][] p : pairs.subList(0, Math.min(k, pairs.size()))) {
+      result.add(itinerary(p[0], p[1]));
+    }
+    return render(result);
+  }
+
+  private static Query.Itinerary itinerary(int[] first, int[] second) {
+    Query.Itinerary result = new Query.Itinerary();
+    result.firstFlight = flight(first);
+    if (second != null) {
+      result.secondFlight = flight(second);
+    }
+    return result;
+  }
+
+  private static Query.Flight flight(int[] f) {
+    Query.Flight result = new Query.Flight();
+    result.fid = f[0];
+    result.dayOfMonth = f[1];
+    result.carrierId = CARRIERS[f[2]];
+    result.flightNum = String.valueOf(f[3]);
+    result.originCity = CITIES[f[4]];
+    result.destCity = CITIES[f[5]];
+    result.time = f[6];
+    result.capacity = f[7];
+    result.price = f[8];
+    return result;
+  }
+
+  private static String render(List<Query.Itinerary> itineraries) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < itineraries.size(); i++) {
+      sb.append(itineraries.get(i).toString(i));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,118 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Replays the cases/ scenarios against a running {@link FlightServer}, one connection per user.
+ *
+ * Usage: FlightServerClient host port [--no-clear] file-or-dir...
+ *
+ * Before each scenario the tables are cleared through dbconn.properties, like FlightServiceTest
+ * does, unless --no-clear is given.
+ */
+public class FlightServerClient implements Closeable {
+  private final Socket socket;
+  private final Writer out;
+  private final Reader in;
+
+  public FlightServerClient(String host, int port) throws IOException {
+    socket = new Socket(host, port);
+    out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Sends one command and waits for its whole response.
+   */
+  public String send(String command) throws IOException {
+    out.write(command);
+    out.write('\n');
+    out.flush();
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1 && c != FlightServer.END_OF_RESPONSE) {
+      sb.append((char) c);
+    }
+    if (c == -1) {
+      throw new EOFException("Server closed the connection");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: FlightServerClient host port [--no-clear] file-or-dir...");
+      System.exit(2);
+    }
+    String host = args[0];
+    int port = Integer.parseInt(args[1]);
+    boolean clear = true;
+    List<String> files = new ArrayList<>();
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("--no-clear")) {
+        clear = false;
+      } else {
+        files.addAll(scenarioFiles(Paths.get(args[i])));
+      }
+    }
+
+    ExecutorService pool = Executors.newCachedThreadPool();
+    int passed = 0;
+    for (String file : files) {
+      if (clear) {
+        Query query = new Query();
+        query.clearTables();
+        query.closeConnection();
+      }
+      List<Scenario> users = Scenario.parse(file);
+      List<Future<String>> futures = new ArrayList<>();
+      for (Scenario user : users) {
+        futures.add(pool.submit(() -> run(host, port, user.commands)));
+      }
+      List<String> outputs = new ArrayList<>();
+      for (Future<String> f : futures) {
+        outputs.add(f.get());
+      }
+      boolean ok = Scenario.matches(users, outputs);
+      passed += ok ? 1 : 0;
+      System.out.println((ok ? "passed " : "FAILED ") + file);
+      if (!ok) {
+        System.out.println(FlightServiceTest.formatOutput(outputs));
+      }
+    }
+    pool.shutdown();
+    System.out.printf("%d/%d scenarios passed%n", passed, files.size());
+    System.exit(passed == files.size() ? 0 : 1);
+  }
+
+  private static String run(String host, int port, List<String> commands) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    try (FlightServerClient client = new FlightServerClient(host, port)) {
+      for (String command : commands) {
+        sb.append(client.send(command));
+      }
+    }
+    return sb.toString();
+  }
+
+  static List<String> scenarioFiles(Path path) throws IOException {
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> paths = Files.walk(path)) {
+        return paths.filter(Files::isRegularFile).filter(p -> p.toString().endsWith(".txt"))
+                .map(Path::toString).sorted().collect(Collectors.toList());
+      }
+    }
+    return Collections.singletonList(path.toString());
+  }
+}
@@ -0,0 +1,108 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a FlightServer over TCP with sessions on the in-memory storage.
+ */
+public class FlightServerTest {
+  private static final String CSV =
+      "1,7,3,5,AS,100,\"Seattle WA\",Washington,\"Boston MA\",Massachusetts,0,10,0,0,300,2500,2,500\n";
+
+  private static final Map<String, String> saved = new HashMap<>();
+  private static Path flights;
+  private FlightServer server;
+  private Thread serving;
+
+  @BeforeClass
+  public static void useMemoryStorage() throws IOException {
+    flights = Files.createTempFile("flights", ".csv");
+    Files.write(flights, CSV.getBytes());
+    for (String key : new String[]{Storage.BACKEND_PROPERTY, MemoryStorage.FLIGHTS_PROPERTY}) {
+      saved.put(key, System.getProperty(key));
+    }
+    System.setProperty(Storage.BACKEND_PROPERTY, "memory");
+    System.setProperty(MemoryStorage.FLIGHTS_PROPERTY, flights.toString());
+  }
+
+  @AfterClass
+  public static void restoreStorage() throws IOException {
+    for (Map.Entry<String, String> e : saved.entrySet()) {
+      if (e.getValue() == null) {
+        System.clearProperty(e.getKey());
+      } else {
+        System.setProperty(e.getKey(), e.getValue());
+      }
+    }
+    Files.deleteIfExists(flights);
+  }
+
+  @Before
+  public void start() throws InterruptedException {
+    server = new FlightServer(0, 10, 4, 1000, Query::new);
+    serving = new Thread(() -> {
+      try {
+        server.serve();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    serving.start();
+    while (server.localPort() < 0) {
+      Thread.sleep(5);
+    }
+  }
+
+  @After
+  public void stop() throws Exception {
+    server.stop();
+    serving.join(5000);
+  }
+
+  @Test
+  public void answersEachCommandAndEndsOnQuit() throws IOException {
+    try (FlightServerClient client = new FlightServerClient("localhost", server.localPort())) {
+      assertEquals("Cannot book reservations, not logged in\n", client.send("book 0"));
+      assertTrue(client.send("search \"Seattle WA\" \"Boston MA\" 1 3 1").startsWith("Itinerary 0: 1 flight(s)"));
+      assertEquals("Goodbye\n", client.send("quit"));
+    }
+  }
+
+  @Test
+  public void malformedArgumentsGetAnErrorAndKeepTheSession() throws IOException {
+    try (FlightServerClient client = new FlightServerClient("localhost", server.localPort())) {
+      for (String command : new String[]{"book abc", "pay x", "cancel x", "create u pw lots"}) {
+        assertTrue(command, client.send(command).startsWith("Error: "));
+      }
+      assertTrue(client.send("search \"Seattle WA\" \"Boston MA\" 1 3 1").startsWith("Itinerary 0"));
+      assertEquals("Goodbye\n", client.send("quit"));
+    }
+  }
+
+  @Test
+  public void dayCancelledInAnotherSessionCanBeBookedAgain() throws IOException {
+    String search = "search \"Seattle WA\" \"Boston MA\" 1 3 1";
+    try (FlightServerClient first = new FlightServerClient("localhost", server.localPort());
+         FlightServerClient second = new FlightServerClient("localhost", server.localPort())) {
+      assertEquals("Created user twice\n", first.send("create twice pw 1000"));
+      first.send("login twice pw");
+      first.send(search);
+      String booked = first.send("book 0");
+      assertTrue(booked, booked.startsWith("Booked flight(s), reservation ID: "));
+      String id = booked.substring(booked.lastIndexOf(' ') + 1).trim();
+
+      // logs in while day 3 is booked
+      second.send("login twice pw");
+      second.send(search);
+      assertEquals("Canceled reservation " + id + "\n", first.send("cancel " + id));
+      assertTrue(second.send("book 0").startsWith("Booked flight(s), reservation ID: "));
+      assertEquals("You cannot book two flights in the same day\n", first.send("book 0"));
+    }
+  }
+}
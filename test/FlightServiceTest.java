@@ -203,6 +203,10 @@ public class FlightServiceTest {
     System.out.println("running setup");
     pool = Executors.newFixedThreadPool(MAX_USERS);
     initCredential();
+    if ("memory".equalsIgnoreCase(System.getProperty(Storage.BACKEND_PROPERTY))) {
+      // nothing to create, each test starts from clearTables
+      return;
+    }
     try {
       Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
               : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
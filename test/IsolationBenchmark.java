@@ -0,0 +1,100 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Mixed workload for comparing read isolation levels: every thread is one logged in user that
+ * mostly searches and lists reservations, and now and then books and cancels a flight. Reads and
+ * bookings touch the same flights, so serializable reads hold range locks the bookers wait on.
+ *
+ * Run once per level against the database in dbconn.properties and compare the throughput:
+ *
+ *   java -Dflightapp.read_isolation=serializable|read_committed|snapshot \
+ *       -cp target/classes:target/test-classes flightapp.IsolationBenchmark [threads] [seconds]
+ *
+ * The tables are cleared first.
+ */
+public class IsolationBenchmark {
+  private static final String[][] ROUTES = {
+          {"Seattle WA", "Boston MA"},
+          {"Seattle WA", "Los Angeles CA"},
+          {"Boston MA", "Chicago IL"},
+          {"Chicago IL", "New York NY"},
+  };
+  // out of 100 commands
+  private static final int BOOK_PERCENT = 10;
+  private static final int RESERVATIONS_PERCENT = 30;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+    Query admin = new Query();
+    admin.clearTables();
+    admin.closeConnection();
+
+    Map<String, LongAdder> counts = new ConcurrentSkipListMap<>();
+    Map<String, LongAdder> nanos = new ConcurrentSkipListMap<>();
+    AtomicBoolean running = new AtomicBoolean(true);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<?>> users = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+      users.add(pool.submit(() -> {
+        Query q = new Query();
+        try {
+          String name = "bench" + id;
+          q.transaction_createCustomer(name, "pw", 1000000);
+          q.transaction_login(name, "pw");
+          Random random = new Random(id);
+          while (running.get()) {
+            String[] route = ROUTES[random.nextInt(ROUTES.length)];
+            int day = 1 + random.nextInt(28);
+            int dice = random.nextInt(100);
+            long start = System.nanoTime();
+            String command;
+            if (dice < BOOK_PERCENT) {
+              command = "book+cancel";
+              q.transaction_search(route[0], route[1], true, day, 1);
+              String booked = q.transaction_book(0);
+              if (booked.startsWith("Booked")) {
+                q.transaction_cancel(Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim()));
+              }
+            } else if (dice < BOOK_PERCENT + RESERVATIONS_PERCENT) {
+              command = "reservations";
+              q.transaction_reservations();
+            } else {
+              command = "search";
+              q.transaction_search(route[0], route[1], false, day, 10);
+            }
+            counts.computeIfAbsent(command, k -> new LongAdder()).increment();
+            nanos.computeIfAbsent(command, k -> new LongAdder()).add(System.nanoTime() - start);
+          }
+        } finally {
+          q.closeConnection();
+        }
+        return null;
+      }));
+    }
+    Thread.sleep(seconds * 1000L);
+    running.set(false);
+    for (Future<?> f : users) {
+      f.get();
+    }
+    pool.shutdown();
+
+    System.out.printf("read_isolation=%s threads=%d seconds=%d%n",
+            System.getProperty("flightapp.read_isolation", "serializable"), threads, seconds);
+    System.out.printf("%14s %10s %10s %12s%n", "command", "count", "per sec", "mean (ms)");
+    long total = 0;
+    for (String command : counts.keySet()) {
+      long n = counts.get(command).sum();
+      total += n;
+      System.out.printf("%14s %10d %10.1f %12.2f%n", command, n, (double) n / seconds,
+              nanos.get(command).sum() / 1e6 / n);
+    }
+    System.out.printf("%14s %10d %10.1f%n", "total", total, (double) total / seconds);
+  }
+}
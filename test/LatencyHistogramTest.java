@@ -0,0 +1,132 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram's percentiles and the load generator's helpers and failure accounting.
+ */
+public class LatencyHistogramTest {
+  @Test
+  public void percentilesStayWithinABucket() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100_000; v++) {
+      h.record(v * 1000);
+    }
+    assertEquals(100_000, h.count());
+    assertEquals(100_000_000L, h.max());
+    assertEquals(50_000_000L, h.percentile(0.5), 50_000_000L * 0.04);
+    assertEquals(99_000_000L, h.percentile(0.99), 99_000_000L * 0.04);
+    assertEquals(100_000_000L, h.percentile(1.0));
+    assertEquals(0, new LatencyHistogram().percentile(0.99));
+  }
+
+  @Test
+  public void bucketsCoverEveryValue() {
+    long[] values = {0, 1, 63, 64, 65, 1000, 123_456_789L, Long.MAX_VALUE};
+    for (long v : values) {
+      int i = LatencyHistogram.index(v);
+      assertTrue(v + " above its bucket", v <= LatencyHistogram.highest(i));
+      assertTrue(v + " below its bucket", i == 0 || v > LatencyHistogram.highest(i - 1));
+    }
+  }
+
+  @Test
+  public void concurrentRecordsAreAllCounted() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<?>> done = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      done.add(pool.submit(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          h.record(i);
+        }
+      }));
+    }
+    for (Future<?> f : done) {
+      f.get();
+    }
+    pool.shutdown();
+    assertEquals(40_000, h.count());
+    assertEquals(9_999, h.max());
+  }
+
+  @Test
+  public void renamesUsersPerScenarioCopy() {
+    assertEquals("create user1_2_0 pw 100", LoadGenerator.rename("create user1 pw 100", "_2_0"));
+    assertEquals("login user1_2_0 pw", LoadGenerator.rename("login user1 pw", "_2_0"));
+    assertEquals("search \"Seattle WA\" \"Boston MA\" 1 1 1",
+        LoadGenerator.rename("search \"Seattle WA\" \"Boston MA\" 1 1 1", "_2_0"));
+    assertEquals(20, LoadGenerator.rename("create abcdefghijklmnopqrst pw 1", "_z_1").split(" ")[1].length());
+    assertTrue(LoadGenerator.succeeded("book", "Booked flight(s), reservation ID: 3\n"));
+    assertFalse(LoadGenerator.succeeded("book", "Booking failed\n"));
+  }
+
+  @Test
+  public void brokenConnectionsAreFailedAttemptsAndRetireTheUser() throws IOException {
+    // the first session breaks at once, the second after one command, and no third one opens
+    int[] opened = {0};
+    LoadGenerator.Target[] sessions = {broken(), answering("Created user load0\n", broken())};
+    LoadGenerator.User user = new LoadGenerator.MixUser(0, LoadGenerator.parseMix("search=1"), () -> {
+      if (opened[0] == sessions.length) {
+        throw new IOException("refused");
+      }
+      return sessions[opened[0]++];
+    });
+    LoadGenerator load = new LoadGenerator();
+    load.measureFrom = Long.MIN_VALUE;
+    load.measureUntil = Long.MAX_VALUE;
+    user.connect();
+    for (int i = 0; i < 4; i++) {
+      load.step(user, System.nanoTime());
+    }
+    assertTrue(user.retired);
+
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    load.report(new PrintStream(report, true), 1);
+    Map<String, String[]> rows = new HashMap<>();
+    for (String line : report.toString().split("\n")) {
+      String[] columns = line.trim().split(" +");
+      rows.put(columns[0], columns);
+    }
+    // the create was sent again on the new session
+    assertEquals("2", rows.get("create")[1]);
+    assertEquals("50.00%", rows.get("create")[3]);
+    assertEquals("1", rows.get("login")[1]);
+    assertEquals("100.00%", rows.get("login")[3]);
+    // a retired user's commands fail without being sent
+    assertEquals("100.00%", rows.get("search")[3]);
+  }
+
+  private static LoadGenerator.Target broken() {
+    return answering(null, null);
+  }
+
+  // Answers the first command with response and hands the rest to then, or fails without a response
+  private static LoadGenerator.Target answering(String response, LoadGenerator.Target then) {
+    return new LoadGenerator.Target() {
+      boolean answered;
+
+      @Override
+      public String send(String command) throws IOException {
+        if (response == null) {
+          throw new IOException("connection reset");
+        }
+        if (answered) {
+          return then.send(command);
+        }
+        answered = true;
+        return response;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}
@@ -0,0 +1,523 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Drives the application with many simulated users to find where booking and search saturate.
+ *
+ * Users either replay the cases/ scenarios or run a synthetic mix of commands weighted by type.
+ * In a closed loop each user sends its next command when the previous one has answered (plus an
+ * optional think time), so the load adapts to the service. In an open loop commands arrive at a
+ * fixed mean rate (Poisson) whatever the service does, and each latency is measured from the
+ * command's scheduled arrival, so time spent queued behind a slow service is counted rather than
+ * hidden.
+ *
+ *   java -cp target/classes:target/test-classes flightapp.LoadGenerator [options] [file-or-dir...]
+ *
+ *   --users N          simulated users, default 100
+ *   --duration S       seconds measured, default 60
+ *   --warmup S         seconds run before measuring, default 10
+ *   --rate R           open loop with R commands per second in total; closed loop without it
+ *   --think MS         closed loop pause between a user's commands, default 0
+ *   --mix SPEC         synthetic mix, e.g. search=60,reservations=20,book=10,pay=5,cancel=5; used
+ *                      when no scenario files are given
+ *   --server HOST:PORT send the commands to a running FlightServer instead of in-process sessions
+ *   --no-clear         keep the tables instead of clearing them first
+ *
+ * Scenario users are replayed over and over. Each copy of a scenario gets its own user names
+ * (suffixed with the copy and round), so thousands of users do not collide on the few names the
+ * cases use, while the users of one copy still share names like the case intends. A user whose
+ * connection breaks gets a new session, and stops if that cannot be opened either. The report lists
+ * per command the attempts, failure rate (including broken connections), latency percentiles of
+ * the commands that answered, and for in-process runs the retries and give-ups of the retry policy.
+ */
+public class LoadGenerator {
+  private static final String DEFAULT_MIX = "search=60,reservations=20,book=10,pay=5,cancel=5";
+  private static final String[][] ROUTES = {
+          {"Seattle WA", "Boston MA"},
+          {"Seattle WA", "Los Angeles CA"},
+          {"Boston MA", "Chicago IL"},
+          {"Chicago IL", "New York NY"},
+          {"New York NY", "Los Angeles CA"},
+          {"Atlanta GA", "Seattle WA"},
+  };
+
+  /**
+   * Where a user's commands go: an in-process session or a connection to a server.
+   */
+  interface Target extends Closeable {
+    String send(String command) throws IOException;
+  }
+
+  /**
+   * Latency and outcome counts of one command type.
+   */
+  static class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder attempts = new LongAdder();
+    final LongAdder failures = new LongAdder();
+  }
+
+  private final Map<String, Stats> stats = new ConcurrentSkipListMap<>();
+  volatile long measureFrom;
+  volatile long measureUntil;
+
+  /**
+   * Returns true if the response is what the command answers when it worked.
+   */
+  static boolean succeeded(String command, String response) {
+    return Metrics.succeeded(command, response);
+  }
+
+  /**
+   * Parses a mix like "search=60,book=10" into cumulative weights, in the order given.
+   */
+  static LinkedHashMap<String, Integer> parseMix(String spec) {
+    LinkedHashMap<String, Integer> mix = new LinkedHashMap<>();
+    int total = 0;
+    for (String part : spec.split(",")) {
+      String[] kv = part.trim().split("=");
+      if (kv.length != 2 || !Metrics.COMMANDS.contains(kv[0])) {
+        throw new IllegalArgumentException("Bad mix entry '" + part + "', expected command=weight");
+      }
+      int weight = Integer.parseInt(kv[1]);
+      if (weight < 0) {
+        throw new IllegalArgumentException("Negative weight in '" + part + "'");
+      }
+      total += weight;
+      mix.put(kv[0], total);
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("Mix has no weight");
+    }
+    return mix;
+  }
+
+  /**
+   * Rewrites the user names of create and login commands for one copy of a scenario. Names stay
+   * within the 20 characters the Users table allows.
+   */
+  static String rename(String command, String suffix) {
+    String[] tokens = FlightService.tokenize(command.trim());
+    if (tokens.length < 2 || !(tokens[0].equals("create") || tokens[0].equals("login"))) {
+      return command;
+    }
+    String name = tokens[1];
+    name = name.substring(0, Math.min(name.length(), 20 - suffix.length())) + suffix;
+    StringBuilder sb = new StringBuilder(tokens[0]).append(' ').append(name);
+    for (int i = 2; i < tokens.length; i++) {
+      sb.append(tokens[i].contains(" ") ? " \"" + tokens[i] + "\"" : " " + tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * One simulated user: hands out its commands one at a time.
+   */
+  abstract static class User {
+    final int id;
+    private final Callable<Target> connect;
+    Target target;
+    // the next command needs a new session
+    boolean stale;
+    // the session broke and no new one could be opened
+    volatile boolean retired;
+
+    User(int id, Callable<Target> connect) {
+      this.id = id;
+      this.connect = connect;
+    }
+
+    abstract String next();
+
+    void saw(String command, String response) {
+    }
+
+    /**
+     * Called when a broken session was replaced by a new, logged out one.
+     */
+    void reconnected() {
+    }
+
+    /**
+     * Replaces the target by a new session.
+     */
+    void connect() throws IOException {
+      if (target != null) {
+        try {
+          target.close();
+        } catch (IOException e) {
+          // the old session is being dropped anyway
+        }
+      }
+      target = open(connect);
+      stale = false;
+    }
+  }
+
+  /**
+   * Replays one user of a scenario, starting over under new names when done.
+   */
+  static class ReplayUser extends User {
+    private final Scenario scenario;
+    private final int copy;
+    private int round;
+    private int position;
+
+    ReplayUser(int id, Scenario scenario, int copy, Callable<Target> connect) {
+      super(id, connect);
+      this.scenario = scenario;
+      this.copy = copy;
+    }
+
+    @Override
+    String next() {
+      if (position == scenario.commands.size() || scenario.commands.get(position).trim().equals("quit")) {
+        // a new round needs a logged out session
+        stale = true;
+        round++;
+        position = 0;
+      }
+      String suffix = "_" + Integer.toString(copy, 36) + "_" + Integer.toString(round, 36);
+      return rename(scenario.commands.get(position++), suffix);
+    }
+
+    @Override
+    void reconnected() {
+      // the new session is logged out, so the round starts over under new names
+      round++;
+      position = 0;
+    }
+  }
+
+  /**
+   * Runs the synthetic mix: searches a random route and day, books one of the results, pays or
+   * cancels its latest booking, lists its reservations.
+   */
+  static class MixUser extends User {
+    private final LinkedHashMap<String, Integer> mix;
+    private final int total;
+    private final Random random;
+    private final Deque<String> pending = new ArrayDeque<>();
+    private final Deque<String> booked = new ArrayDeque<>();
+    private final String name;
+    private boolean created;
+    private boolean searched;
+
+    MixUser(int id, LinkedHashMap<String, Integer> mix, Callable<Target> connect) {
+      super(id, connect);
+      this.mix = mix;
+      this.total = new ArrayList<>(mix.values()).get(mix.size() - 1);
+      this.random = new Random(id);
+      name = "load" + id;
+      pending.add("create " + name + " pw 100000000");
+      pending.add("login " + name + " pw");
+    }
+
+    @Override
+    String next() {
+      if (!pending.isEmpty()) {
+        return pending.poll();
+      }
+      int dice = random.nextInt(total);
+      String command = null;
+      for (Map.Entry<String, Integer> e : mix.entrySet()) {
+        if (dice < e.getValue()) {
+          command = e.getKey();
+          break;
+        }
+      }
+      switch (command) {
+        case "book":
+          if (searched) {
+            return "book " + random.nextInt(3);
+          }
+          return search();
+        case "pay":
+          return booked.isEmpty() ? "reservations" : "pay " + booked.peekLast();
+        case "cancel":
+          return booked.isEmpty() ? "reservations" : "cancel " + booked.pollLast();
+        case "reservations":
+          return "reservations";
+        default:
+          return search();
+      }
+    }
+
+    private String search() {
+      String[] route = ROUTES[random.nextInt(ROUTES.length)];
+      return "search \"" + route[0] + "\" \"" + route[1] + "\" " + random.nextInt(2) + " " + (1 + random.nextInt(28))
+              + " 5";
+    }
+
+    @Override
+    void saw(String command, String response) {
+      if (command.startsWith("create")) {
+        created = true;
+      } else if (command.startsWith("search")) {
+        searched = response.startsWith("Itinerary");
+      } else if (response.startsWith("Booked")) {
+        booked.add(response.substring(response.lastIndexOf(' ') + 1).trim());
+      }
+    }
+
+    @Override
+    void reconnected() {
+      pending.clear();
+      if (!created) {
+        pending.add("create " + name + " pw 100000000");
+      }
+      pending.add("login " + name + " pw");
+      searched = false;
+    }
+  }
+
+  /**
+   * Sends the user's next command and records it if inside the measured window. A command that
+   * could not be sent counts as failed, and the user gets a new session or is retired.
+   *
+   * @param scheduled when the command was due, in System.nanoTime
+   */
+  void step(User user, long scheduled) {
+    String command = user.next();
+    String name = command.trim().split(" ", 2)[0];
+    Stats s = scheduled >= measureFrom && scheduled < measureUntil ? stats(name) : null;
+    if (s != null) {
+      s.attempts.increment();
+    }
+    String response;
+    try {
+      if (user.retired) {
+        throw new IOException("no session");
+      }
+      if (user.stale) {
+        user.connect();
+      }
+      response = user.target.send(command);
+    } catch (IOException e) {
+      if (s != null) {
+        s.failures.increment();
+      }
+      if (!user.retired) {
+        try {
+          user.connect();
+          user.reconnected();
+        } catch (IOException again) {
+          user.retired = true;
+        }
+      }
+      return;
+    }
+    long end = System.nanoTime();
+    user.saw(command, response);
+    if (s != null) {
+      s.latency.record(end - scheduled);
+      if (!succeeded(name, response)) {
+        s.failures.increment();
+      }
+    }
+  }
+
+  private Stats stats(String command) {
+    return stats.computeIfAbsent(command, k -> new Stats());
+  }
+
+  private static Target open(Callable<Target> connect) throws IOException {
+    try {
+      return connect.call();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Each user on its own thread, sending as soon as its last command answered.
+   */
+  void closedLoop(List<User> users, long thinkMillis) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(users.size());
+    for (User user : users) {
+      pool.submit(() -> {
+        while (!user.retired && System.nanoTime() < measureUntil) {
+          step(user, System.nanoTime());
+          if (thinkMillis > 0) {
+            try {
+              Thread.sleep(thinkMillis);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  /**
+   * Commands arrive at {@code rate} per second on average, each taken by a user that is free. A
+   * command that finds every user busy waits, and the wait counts toward its latency. A command
+   * taken by a retired user fails.
+   */
+  void openLoop(List<User> users, double rate) throws InterruptedException {
+    BlockingQueue<User> idle = new LinkedBlockingQueue<>(users);
+    ExecutorService pool = Executors.newFixedThreadPool(users.size());
+    Random random = new Random(1);
+    long next = System.nanoTime();
+    while (next < measureUntil) {
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      long scheduled = next;
+      pool.submit(() -> {
+        User user = idle.take();
+        try {
+          step(user, scheduled);
+        } finally {
+          idle.put(user);
+        }
+        return null;
+      });
+      next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  void report(PrintStream out, double seconds) {
+    out.printf("%-13s %9s %9s %8s %9s %9s %9s %9s%n", "command", "count", "per s", "failed", "p50 ms", "p99 ms",
+            "p999 ms", "max ms");
+    long all = 0;
+    for (Map.Entry<String, Stats> e : stats.entrySet()) {
+      // latencies are of the commands that answered, the failure rate is of all attempts
+      LatencyHistogram h = e.getValue().latency;
+      long n = e.getValue().attempts.sum();
+      all += n;
+      out.printf("%-13s %9d %9.1f %7.2f%% %9.2f %9.2f %9.2f %9.2f%n", e.getKey(), n, n / seconds,
+              n == 0 ? 0.0 : 100.0 * e.getValue().failures.sum() / n, h.percentile(0.50) / 1e6,
+              h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6);
+    }
+    out.printf("total %d commands, %.1f per second%n", all, all / seconds);
+    RetryPolicy retries = RetryPolicy.shared();
+    for (String command : retries.commands()) {
+      RetryPolicy.Counters c = retries.counters(command);
+      long n = stats.containsKey(command) ? stats.get(command).attempts.sum() : 0;
+      out.printf("%s: %d retries (%.2f per command), %d given up, %d deadlocks%n", command, c.retries(),
+              n == 0 ? 0.0 : (double) c.retries() / n, c.giveUps(), c.deadlocks());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int users = 100;
+    int duration = 60;
+    int warmup = 10;
+    double rate = 0;
+    long think = 0;
+    String mixSpec = null;
+    String server = null;
+    boolean clear = true;
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--users": users = Integer.parseInt(args[++i]); break;
+        case "--duration": duration = Integer.parseInt(args[++i]); break;
+        case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+        case "--rate": rate = Double.parseDouble(args[++i]); break;
+        case "--think": think = Long.parseLong(args[++i]); break;
+        case "--mix": mixSpec = args[++i]; break;
+        case "--server": server = args[++i]; break;
+        case "--no-clear": clear = false; break;
+        default: files.addAll(FlightServerClient.scenarioFiles(Paths.get(args[i])));
+      }
+    }
+
+    if (clear) {
+      Query query = new Query();
+      query.clearTables();
+      query.closeConnection();
+    }
+    Callable<Target> connect;
+    if (server != null) {
+      String host = server.substring(0, server.lastIndexOf(':'));
+      int port = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+      connect = () -> {
+        FlightServerClient client = new FlightServerClient(host, port);
+        return new Target() {
+          public String send(String command) throws IOException {
+            return client.send(command);
+          }
+
+          public void close() throws IOException {
+            client.close();
+          }
+        };
+      };
+    } else {
+      connect = () -> {
+        Query q = new Query();
+        return new Target() {
+          public String send(String command) {
+            return FlightService.execute(q, command);
+          }
+
+          public void close() throws IOException {
+            try {
+              q.closeConnection();
+            } catch (java.sql.SQLException e) {
+              throw new IOException(e);
+            }
+          }
+        };
+      };
+    }
+
+    LoadGenerator load = new LoadGenerator();
+    List<User> simulated = new ArrayList<>();
+    if (files.isEmpty()) {
+      LinkedHashMap<String, Integer> mix = parseMix(mixSpec == null ? DEFAULT_MIX : mixSpec);
+      for (int i = 0; i < users; i++) {
+        simulated.add(new MixUser(i, mix, connect));
+      }
+    } else {
+      // copies of every scenario in turn until there are enough users
+      List<List<Scenario>> scenarios = new ArrayList<>();
+      for (String file : files) {
+        scenarios.add(Scenario.parse(file));
+      }
+      for (int copy = 0; simulated.size() < users; copy++) {
+        for (Scenario user : scenarios.get(copy % scenarios.size())) {
+          if (simulated.size() < users) {
+            simulated.add(new ReplayUser(simulated.size(), user, copy, connect));
+          }
+        }
+      }
+    }
+    for (User user : simulated) {
+      user.connect();
+    }
+
+    long start = System.nanoTime();
+    load.measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+    load.measureUntil = load.measureFrom + TimeUnit.SECONDS.toNanos(duration);
+    System.err.printf("%d users, %s, %d s warm-up, %d s measured%n", simulated.size(),
+            rate > 0 ? "open loop at " + rate + " commands/s" : "closed loop", warmup, duration);
+    if (rate > 0) {
+      load.openLoop(simulated, rate);
+    } else {
+      load.closedLoop(simulated, think);
+    }
+    for (User user : simulated) {
+      if (!user.retired) {
+        user.target.close();
+      }
+    }
+    load.report(System.out, duration);
+    System.exit(0);
+  }
+}
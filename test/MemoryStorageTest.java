@@ -0,0 +1,116 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the in-memory storage: reading flights from CSV, the booking rules and that concurrent
+ * bookings never sell more seats than a flight has.
+ */
+public class MemoryStorageTest {
+  private static final String CSV =
+      "fid,month_id,day_of_month,day_of_week_id,carrier_id,flight_num,origin_city,origin_state,dest_city,dest_state,"
+          + "departure_delay,taxi_out,arrival_delay,canceled,actual_time,distance,capacity,price\n"
+          + "1,7,3,5,AS,100,\"Seattle WA\",Washington,\"Boston MA\",Massachusetts,0,10,0,0,300,2500,2,500\n"
+          + "2,7,3,5,AS,200,\"Seattle WA\",Washington,\"Chicago IL\",Illinois,0,10,0,0,200,1700,1,300\n"
+          + "3,7,3,5,UA,300,\"Chicago IL\",Illinois,\"Boston MA\",Massachusetts,0,10,0,0,90,800,5,200\n"
+          + "4,7,3,5,UA,400,\"Seattle WA\",Washington,\"Boston MA\",Massachusetts,0,10,0,1,100,2500,5,100\n";
+
+  private MemoryStorage storage;
+
+  @Before
+  public void load() throws IOException {
+    storage = new MemoryStorage(MemoryStorage.readFlights(new BufferedReader(new StringReader(CSV))));
+  }
+
+  @Test
+  public void searchesFlightsFromCsvSkippingCancelled() throws SQLException {
+    List<Query.Itinerary> found = storage.search("Seattle WA", "Boston MA", false, 3, 5);
+    assertEquals(2, found.size());
+    assertEquals(1, found.get(0).firstFlight.fid);
+    assertTrue(found.get(0).isDirect());
+    assertEquals(2, found.get(1).firstFlight.fid);
+    assertEquals(3, found.get(1).secondFlight.fid);
+    assertEquals(1, storage.search("Seattle WA", "Boston MA", true, 3, 5).size());
+  }
+
+  @Test
+  public void booksPaysAndCancels() throws SQLException {
+    assertTrue(storage.createUser("a", new byte[1], new byte[1], 600));
+    assertFalse(storage.createUser("a", new byte[1], new byte[1], 0));
+
+    int id = storage.book("a", 0, 3, 500, 1, 2, -1, 0);
+    assertEquals(1, id);
+    assertEquals(Storage.SAME_DAY, storage.book("a", 0, 3, 500, 1, 2, -1, 0));
+    assertEquals(SessionStore.Session.dayBit(3), storage.findUser("a").bookedDays);
+
+    Storage.Payment paid = storage.pay("a", id);
+    assertTrue(paid.paid);
+    assertEquals(100, paid.balance);
+    assertFalse(storage.pay("a", id).found);
+
+    assertEquals(3, storage.cancel("a", id));
+    assertEquals(0, storage.cancel("a", id));
+    assertEquals(0, storage.findUser("a").bookedDays);
+    assertTrue(storage.reservations("a").isEmpty());
+
+    // refunded, so the next one is affordable, and IDs are not reused
+    int again = storage.book("a", 1, 3, 500, 2, 1, 3, 5);
+    assertEquals(2, again);
+    assertEquals(1, storage.reservations("a").size());
+    assertEquals(3, storage.reservations("a").get(0).second.fid);
+    assertEquals(100, storage.pay("a", again).balance);
+  }
+
+  @Test
+  public void refusesPaymentBeyondBalance() throws SQLException {
+    storage.createUser("b", new byte[1], new byte[1], 10);
+    int id = storage.book("b", 0, 3, 500, 1, 2, -1, 0);
+    Storage.Payment payment = storage.pay("b", id);
+    assertTrue(payment.found);
+    assertFalse(payment.paid);
+    assertEquals(500, payment.cost);
+    assertEquals(10, payment.balance);
+  }
+
+  @Test
+  public void fullFlightTakesNoSeatFromTheOtherLeg() throws SQLException {
+    storage.createUser("c", new byte[1], new byte[1], 0);
+    storage.createUser("d", new byte[1], new byte[1], 0);
+    storage.book("c", 0, 3, 0, 2, 1, -1, 0);
+    // flight 2 is full, so flight 3 must keep all its seats
+    assertEquals(Storage.FLIGHT_FULL, storage.book("d", 0, 3, 0, 2, 1, 3, 1));
+    assertEquals(0, storage.findUser("d").bookedDays);
+    assertTrue(storage.book("d", 0, 3, 0, 3, 1, -1, 0) > 0);
+  }
+
+  @Test
+  public void concurrentBookingsNeverOversell() throws Exception {
+    int users = 16;
+    for (int i = 0; i < users; i++) {
+      storage.createUser("u" + i, new byte[1], new byte[1], 0);
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      String user = "u" + i;
+      results.add(pool.submit(() -> storage.book(user, 0, 3, 0, 2, 1, 3, 5)));
+    }
+    Set<Integer> ids = new HashSet<>();
+    for (Future<Integer> r : results) {
+      int id = r.get();
+      if (id > 0) {
+        ids.add(id);
+      }
+    }
+    pool.shutdown();
+    // flight 2 has a single seat
+    assertEquals(Collections.singleton(1), ids);
+  }
+}
@@ -0,0 +1,65 @@
+package flightapp;
+
+import org.junit.*;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that commands, round trips and rows are recorded against the command open on the thread,
+ * and that the counters are readable over JMX.
+ */
+public class MetricsTest {
+  private final Metrics metrics = new Metrics(true);
+
+  @Test
+  public void recordsRoundTripsAndRowsOfTheOpenCommand() throws Exception {
+    PreparedStatement statement = MeteredStatement.wrap("test", StubStatements.returning(3));
+    statement.executeQuery().close();
+
+    Metrics.Command book = metrics.begin("book");
+    long start = System.nanoTime();
+    try (ResultSet rows = statement.executeQuery()) {
+      while (rows.next()) {
+      }
+    }
+    statement.executeUpdate();
+    Metrics.commit();
+    metrics.end(book, start, true);
+    // nothing is open any more
+    statement.executeUpdate();
+
+    assertEquals(1, book.getCount());
+    assertEquals(3, book.getRoundTrips());
+    assertEquals(3, book.getRowsFetched());
+    assertEquals(1, book.getCommits());
+    assertEquals(0, book.getFailures());
+  }
+
+  @Test
+  public void classifiesOutcomesAndUnknownCommands() {
+    Metrics.Command other = metrics.begin("fly");
+    metrics.end(other, System.nanoTime(), Metrics.succeeded("fly", "Error: unrecognized command 'fly'"));
+    assertSame(metrics.command(Metrics.OTHER), other);
+    assertEquals(1, other.getFailures());
+    assertTrue(Metrics.succeeded("search", "No flights match your selection\n"));
+    assertFalse(Metrics.succeeded("pay", "Failed to pay for reservation 1\n"));
+    assertTrue(metrics.dump().startsWith("command"));
+  }
+
+  @Test
+  public void commandsAreMBeans() throws Exception {
+    Metrics.Command search = Metrics.shared().begin("search");
+    Metrics.shared().end(search, System.nanoTime(), true);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    long count = (Long) server.getAttribute(new ObjectName("flightapp:type=Command,name=search"), "Count");
+    assertTrue(count >= 1);
+    String dump = (String) server.invoke(new ObjectName("flightapp:type=Metrics"), "dump", null, null);
+    assertTrue(dump.contains("search"));
+    assertTrue(dump.contains("sessions: "));
+    assertTrue((Long) server.getAttribute(new ObjectName("flightapp:type=Metrics"), "EstimatedBytesPerSession") > 0);
+  }
+}
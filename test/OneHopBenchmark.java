@@ -0,0 +1,101 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Compares the one-hop engine with the plan SEARCH_INDIRECT runs: join every pair of legs through
+ * each hub, sort all of them, keep the top k.
+ *
+ * Run with: java -cp target/classes:target/test-classes flightapp.OneHopBenchmark [k] [hubs]
+ */
+public class OneHopBenchmark {
+  private static final int[] FLIGHTS_PER_HUB = {10, 50, 100, 500, 1000, 2000};
+  private static final int WARMUP = 5;
+  private static final int RUNS = 20;
+
+  public static void main(String[] args) {
+    int k = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int hubs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    System.out.printf("k=%d hubs=%d%n", k, hubs);
+    System.out.printf("%16s %14s %14s %10s%n", "flights/hub", "join (us)", "engine (us)", "speedup");
+    for (int n : FLIGHTS_PER_HUB) {
+      Fixture f = new Fixture(hubs, n);
+      long join = time(() -> f.join(k));
+      long engine = time(() -> f.engine(k));
+      if (!Arrays.deepEquals(f.join(k), f.engine(k))) {
+        throw new IllegalStateException("engine and join disagree for " + n + " flights per hub");
+      }
+      System.out.printf("%16d %14d %14d %9.1fx%n", n, join / 1000, engine / 1000, (double) join / engine);
+    }
+  }
+
+  private static long time(Runnable r) {
+    for (int i = 0; i < WARMUP; i++) {
+      r.run();
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      r.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  /**
+   * City 0 is the origin, city 1 the destination and cities 2.. are hubs. Every hub has {@code n}
+   * flights from the origin and {@code n} flights to the destination.
+   */
+  static class Fixture {
+    final int[] time;
+    final int[] fid;
+    final int[] origin;
+    final int[] dest;
+    final int[] firstLegs;
+    final int[] secondLegs;
+    final OneHopEngine engine;
+
+    Fixture(int hubs, int n) {
+      int rows = 2 * hubs * n;
+      time = new int[rows];
+      fid = new int[rows];
+      origin = new int[rows];
+      dest = new int[rows];
+      Random random = new Random(rows);
+      for (int row = 0; row < rows; row++) {
+        int hub = 2 + row / (2 * n);
+        boolean first = row % 2 == 0;
+        fid[row] = row + 1;
+        time[row] = 60 + random.nextInt(300);
+        origin[row] = first ? 0 : hub;
+        dest[row] = first ? hub : 1;
+      }
+      Integer[] order = new Integer[rows];
+      for (int i = 0; i < rows; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.<Integer>comparingInt(r -> time[r]).thenComparingInt(r -> fid[r]));
+      firstLegs = Arrays.stream(order).filter(r -> origin[r] == 0).mapToInt(Integer::intValue).toArray();
+      secondLegs = Arrays.stream(order).filter(r -> dest[r] == 1).mapToInt(Integer::intValue).toArray();
+      engine = new OneHopEngine(time, fid, origin, dest, hubs + 2);
+    }
+
+    int[][] engine(int k) {
+      return engine.topK(firstLegs, secondLegs, k);
+    }
+
+    int[][] join(int k) {
+      List<int[]> pairs = new ArrayList<>();
+      for (int a : firstLegs) {
+        for (int b : secondLegs) {
+          if (dest[a] == origin[b]) {
+            pairs.add(new int[]{a, b});
+          }
+        }
+      }
+      pairs.sort(Comparator.<int[]>comparingInt(p -> time[p[0]] + time[p[1]])
+              .thenComparingInt(p -> fid[p[0]]).thenComparingInt(p -> fid[p[1]]));
+      return pairs.subList(0, Math.min(k, pairs.size())).toArray(new int[0][]);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that pooled hashes match plain PBKDF2, that a full queue refuses work, and the counters.
+ */
+public class PasswordHasherTest {
+
+  private static byte[] direct(String password, byte[] salt, int iterations) throws Exception {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, PasswordHasher.KEY_LENGTH);
+    return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+  }
+
+  @Test
+  public void matchesPlainPbkdf2() throws Exception {
+    PasswordHasher hasher = new PasswordHasher(2, 4, 1000);
+    byte[] salt = hasher.salt();
+    assertArrayEquals(direct("secret", salt, 1000), hasher.hash("secret", salt));
+    assertFalse(Arrays.equals(hasher.hash("secret", salt), hasher.hash("Secret", salt)));
+    assertEquals(3, hasher.hashes());
+    assertTrue(hasher.meanHashNanos() > 0);
+  }
+
+  @Test
+  public void saltsDiffer() {
+    PasswordHasher hasher = new PasswordHasher(1, 1, 1000);
+    assertEquals(16, hasher.salt().length);
+    assertFalse(Arrays.equals(hasher.salt(), hasher.salt()));
+  }
+
+  @Test
+  public void refusesWhenQueueIsFull() throws Exception {
+    // one worker and one queue slot, so of several slow hashes at once some must be refused
+    PasswordHasher hasher = new PasswordHasher(1, 1, 200000);
+    int callers = 6;
+    ExecutorService pool = Executors.newFixedThreadPool(callers);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (int i = 0; i < callers; i++) {
+      results.add(pool.submit(() -> {
+        start.await();
+        try {
+          hasher.hash("pw", new byte[16]);
+          return true;
+        } catch (IllegalStateException e) {
+          return false;
+        }
+      }));
+    }
+    start.countDown();
+    int refused = 0;
+    for (Future<Boolean> r : results) {
+      if (!r.get()) {
+        refused++;
+      }
+    }
+    pool.shutdown();
+    assertTrue(refused > 0);
+    assertEquals(refused, hasher.rejected());
+    assertEquals(callers - refused, hasher.hashes());
+    assertEquals(0, hasher.queueDepth());
+  }
+}
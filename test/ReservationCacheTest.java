@@ -0,0 +1,93 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks in-place updates, stale fills, eviction and the counters of the reservation cache.
+ */
+public class ReservationCacheTest {
+  private final ReservationCache cache = new ReservationCache(2, false);
+
+  private static Query.Flight flight(int fid) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.flightNum = "1";
+    return f;
+  }
+
+  private static ReservationCache.Reservation reservation(int id) {
+    return new ReservationCache.Reservation(id, false, flight(id * 10), null);
+  }
+
+  private static List<Integer> ids(List<ReservationCache.Reservation> list) {
+    List<Integer> ids = new ArrayList<>();
+    for (ReservationCache.Reservation r : list) {
+      ids.add(r.id);
+    }
+    return ids;
+  }
+
+  @Test
+  public void writesUpdateCachedListInPlace() {
+    cache.fill("alice", cache.stamp("alice"), Arrays.asList(reservation(1), reservation(4)));
+    cache.booked("alice", reservation(3));
+    cache.paid("alice", 4);
+    cache.cancelled("alice", 1);
+    List<ReservationCache.Reservation> list = cache.get("alice");
+    assertEquals(Arrays.asList(3, 4), ids(list));
+    assertFalse(list.get(0).paid);
+    assertTrue(list.get(1).paid);
+  }
+
+  @Test
+  public void bookingListedBeforeItIsCachedIsNotAddedTwice() {
+    // another session lists the committed booking before this one adds it
+    cache.fill("alice", cache.stamp("alice"), Arrays.asList(reservation(1), reservation(2)));
+    cache.booked("alice", reservation(2));
+    assertEquals(Arrays.asList(1, 2), ids(cache.get("alice")));
+  }
+
+  @Test
+  public void writesDoNotCreateLists() {
+    cache.booked("bob", reservation(1));
+    assertNull(cache.get("bob"));
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void fillReadBeforeAWriteIsDropped() {
+    long stamp = cache.stamp("alice");
+    cache.booked("alice", reservation(2));
+    cache.fill("alice", stamp, Collections.singletonList(reservation(1)));
+    assertNull(cache.get("alice"));
+
+    cache.fill("alice", cache.stamp("alice"), Arrays.asList(reservation(1), reservation(2)));
+    assertEquals(Arrays.asList(1, 2), ids(cache.get("alice")));
+    assertEquals(1, cache.hits());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedUser() {
+    cache.fill("a", cache.stamp("a"), Collections.emptyList());
+    cache.fill("b", cache.stamp("b"), Collections.emptyList());
+    cache.get("a");
+    cache.fill("c", cache.stamp("c"), Collections.emptyList());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.evictions());
+  }
+
+  @Test
+  public void clearingForgetsEverything() {
+    long stamp = cache.stamp("alice");
+    cache.fill("alice", stamp, Collections.singletonList(reservation(1)));
+    cache.invalidateAll();
+    assertNull(cache.get("alice"));
+    cache.fill("alice", stamp, Collections.singletonList(reservation(1)));
+    assertNull(cache.get("alice"));
+  }
+}
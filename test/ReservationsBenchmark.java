@@ -0,0 +1,112 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Times listing a user's reservations with 1, 10 and 100 two-hop reservations: the old plan (one
+ * query for the reservations, then one lookup per leg) against the single join reservations runs
+ * now, plus the whole {@code transaction_reservations} command.
+ *
+ * Run against the database in dbconn.properties, the tables are cleared first:
+ *
+ *   java -cp target/classes:target/test-classes flightapp.ReservationsBenchmark
+ */
+public class ReservationsBenchmark {
+  private static final int[] RESERVATIONS = {1, 10, 100};
+  private static final int WARMUP = 5;
+  private static final int RUNS = 30;
+
+  private static final String LIST = "SELECT * FROM Reservations WHERE username = ? AND ifcancelled = 0 ORDER BY reserveID";
+  private static final String FLIGHT = "SELECT * FROM Flights WHERE fid = ?";
+  private static final String JOIN =
+          "SELECT F1.*, F2.*, R.reserveID, R.ifpaid, R.ifdirect "
+                  + "FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 LEFT JOIN Flights F2 ON F2.fid = R.fid2 "
+                  + "WHERE R.username = ? AND R.ifcancelled = 0 ORDER BY R.reserveID";
+  // n reservations for user ?, each with the same flight as both legs, IDs from ? + 1
+  private static final String FILL =
+          "INSERT INTO Reservations SELECT TOP (?) ? + ROW_NUMBER() OVER (ORDER BY fid), ?, 0, 0, fid, fid, price, 0, 0, "
+                  + "day_of_month FROM Flights ORDER BY fid";
+
+  public static void main(String[] args) throws Exception {
+    Query admin = new Query();
+    admin.clearTables();
+    admin.closeConnection();
+
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      System.out.printf("%14s %16s %12s %16s%n", "reservations", "per-leg (us)", "join (us)", "command (us)");
+      for (int n : RESERVATIONS) {
+        String user = "bench" + n;
+        Query q = new Query();
+        q.transaction_createCustomer(user, "pw", 0);
+        q.transaction_login(user, "pw");
+        try (PreparedStatement fill = conn.prepareStatement(FILL)) {
+          fill.setInt(1, n);
+          fill.setInt(2, n * 1000);
+          fill.setString(3, user);
+          fill.executeUpdate();
+        }
+
+        try (PreparedStatement list = conn.prepareStatement(LIST);
+             PreparedStatement flight = conn.prepareStatement(FLIGHT);
+             PreparedStatement join = conn.prepareStatement(JOIN)) {
+          long perLeg = time(() -> perLeg(list, flight, user));
+          long joined = time(() -> drain(join, user));
+          long command = time(() -> {
+            q.transaction_reservations();
+            return 0;
+          });
+          System.out.printf("%14d %16d %12d %16d%n", n, perLeg / 1000, joined / 1000, command / 1000);
+        }
+        q.closeConnection();
+      }
+    }
+  }
+
+  interface Run {
+    int run() throws SQLException;
+  }
+
+  private static long time(Run r) throws SQLException {
+    for (int i = 0; i < WARMUP; i++) {
+      r.run();
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      r.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  private static int perLeg(PreparedStatement list, PreparedStatement flight, String user) throws SQLException {
+    int rows = 0;
+    list.setString(1, user);
+    try (ResultSet rs = list.executeQuery()) {
+      while (rs.next()) {
+        flight.setInt(1, rs.getInt("fid1"));
+        rows += drain(flight);
+        if (rs.getInt("ifdirect") == 0) {
+          flight.setInt(1, rs.getInt("fid2"));
+          rows += drain(flight);
+        }
+      }
+    }
+    return rows;
+  }
+
+  private static int drain(PreparedStatement join, String user) throws SQLException {
+    join.setString(1, user);
+    return drain(join);
+  }
+
+  private static int drain(PreparedStatement statement) throws SQLException {
+    int rows = 0;
+    try (ResultSet rs = statement.executeQuery()) {
+      while (rs.next()) {
+        rows++;
+      }
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,91 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which errors are retried, the attempt cap, the backoff delays and the counters.
+ */
+public class RetryPolicyTest {
+  private final List<Long> sleeps = new ArrayList<>();
+  private final RetryPolicy policy = new RetryPolicy(4, 10, 50, sleeps::add);
+
+  private static SQLException deadlock() {
+    return new SQLException("deadlock victim", "40001", 1205);
+  }
+
+  @Test
+  public void retriesDeadlockUntilSuccess() throws SQLException {
+    int[] calls = {0};
+    String result = policy.run("book", () -> {
+      if (++calls[0] < 3) {
+        throw deadlock();
+      }
+      return "ok";
+    });
+    assertEquals("ok", result);
+    assertEquals(3, calls[0]);
+    assertEquals(2, policy.counters("book").retries());
+    assertEquals(2, policy.counters("book").deadlocks());
+    assertEquals(0, policy.counters("book").giveUps());
+  }
+
+  @Test
+  public void givesUpAfterMaxAttempts() {
+    int[] calls = {0};
+    try {
+      policy.run("pay", () -> {
+        calls[0]++;
+        throw deadlock();
+      });
+      fail("should give up");
+    } catch (SQLException e) {
+      assertEquals(1205, e.getErrorCode());
+    }
+    assertEquals(4, calls[0]);
+    assertEquals(3, policy.counters("pay").retries());
+    assertEquals(1, policy.counters("pay").giveUps());
+  }
+
+  @Test
+  public void otherErrorsAreNotRetried() {
+    int[] calls = {0};
+    try {
+      policy.run("cancel", () -> {
+        calls[0]++;
+        throw new SQLException("syntax", "42000", 102);
+      });
+      fail("should fail");
+    } catch (SQLException e) {
+      assertEquals(102, e.getErrorCode());
+    }
+    assertEquals(1, calls[0]);
+    assertEquals(0, policy.counters("cancel").retries());
+    assertTrue(sleeps.isEmpty());
+  }
+
+  @Test
+  public void delaysGrowAndStayCapped() {
+    for (int retry = 1; retry <= 10; retry++) {
+      long full = Math.min(10L << (retry - 1), 50);
+      for (int i = 0; i < 100; i++) {
+        long delay = policy.delay(retry);
+        assertTrue(delay <= full);
+        assertTrue(delay >= full - full / 2);
+      }
+    }
+  }
+
+  @Test
+  public void retryableErrors() {
+    assertTrue(RetryPolicy.isRetryable(deadlock()));
+    assertTrue(RetryPolicy.isRetryable(new SQLException("snapshot conflict", "S0001", 3960)));
+    assertTrue(RetryPolicy.isRetryable(new SQLException("duplicate key", "23000", 2627)));
+    assertTrue(RetryPolicy.isRetryable(new SQLException("serialization failure", "40001")));
+    assertFalse(RetryPolicy.isRetryable(new SQLException("constraint", "23000", 547)));
+  }
+}
@@ -0,0 +1,86 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * One user of a test case file: the commands they run and every acceptable output.
+ *
+ * Same format as {@link FlightServiceTest#parse}, without opening a database session per user, so
+ * tools that drive the application some other way can reuse the cases/ scenarios.
+ */
+class Scenario {
+  final List<String> commands;
+  final List<String> outcomes;
+
+  Scenario(List<String> commands, List<String> outcomes) {
+    this.commands = commands;
+    this.outcomes = outcomes;
+  }
+
+  /**
+   * Parses a test case file into its users
+   */
+  static List<Scenario> parse(String filename) throws IOException {
+    List<Scenario> users = new ArrayList<>();
+    List<String> cmds = new ArrayList<>();
+    List<String> results = new ArrayList<>();
+    String r = "";
+    boolean isCmd = true;
+    int lineNumber = 0;
+    try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+      String l;
+      while ((l = reader.readLine()) != null) {
+        lineNumber++;
+        if (l.startsWith(FlightServiceTest.COMMENTS)) {
+          continue;
+        } else if (l.startsWith(FlightServiceTest.DELIMITER)) {
+          if (isCmd) {
+            isCmd = false;
+          } else {
+            results.add(r);
+            users.add(new Scenario(cmds, results));
+            cmds = new ArrayList<>();
+            results = new ArrayList<>();
+            r = "";
+            isCmd = true;
+          }
+        } else if (l.startsWith(FlightServiceTest.SEPARATOR)) {
+          if (isCmd) {
+            throw new IllegalArgumentException("ERROR: input file is malformatted on line: " + lineNumber);
+          }
+          results.add(r);
+          r = "";
+        } else {
+          l = l.split(FlightServiceTest.COMMENTS, 2)[0];
+          if (isCmd) {
+            cmds.add(l);
+          } else {
+            r = r + l + "\n";
+          }
+        }
+      }
+    }
+    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0) {
+      throw new IllegalArgumentException("ERROR: input file is malformatted, extra information found");
+    }
+    return users;
+  }
+
+  /**
+   * Returns true if the outputs, one per user, all match the same outcome.
+   */
+  static boolean matches(List<Scenario> users, List<String> outputs) {
+    int n = users.get(0).outcomes.size();
+    for (int i = 0; i < n; i++) {
+      boolean same = true;
+      for (int j = 0; j < users.size(); j++) {
+        same = same && users.get(j).outcomes.get(i).equals(outputs.get(j));
+      }
+      if (same) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
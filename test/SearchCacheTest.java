@@ -0,0 +1,85 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks prefix serving, eviction and expiry of the shared search cache.
+ */
+public class SearchCacheTest {
+  private long now;
+  private SearchCache cache;
+
+  @Before
+  public void createCache() {
+    now = 0;
+    cache = new SearchCache(2, 1000, () -> now);
+  }
+
+  @Test
+  public void smallerCountsAreServedFromPrefix() {
+    cache.put("A", "B", false, 1, 5, itineraries(1, 2, 3), itineraries(10, 11));
+    SearchCache.Result result = cache.get("A", "B", false, 1, 4);
+    assertEquals(Arrays.asList(1, 2, 3), fids(result.direct));
+    assertEquals(Arrays.asList(10), fids(result.indirect));
+    result = cache.get("A", "B", false, 1, 2);
+    assertEquals(Arrays.asList(1, 2), fids(result.direct));
+    assertEquals(Collections.emptyList(), fids(result.indirect));
+    assertEquals(2, cache.hits());
+  }
+
+  @Test
+  public void largerCountsNeedACompleteEntry() {
+    cache.put("A", "B", false, 1, 5, itineraries(1, 2, 3), itineraries(10, 11));
+    assertNull(cache.get("A", "B", false, 1, 6));
+    cache.put("A", "B", true, 1, 5, itineraries(1, 2, 3), itineraries());
+    assertEquals(Arrays.asList(1, 2, 3), fids(cache.get("A", "B", true, 1, 50).direct));
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void leastRecentlyUsedRouteIsEvicted() {
+    cache.put("A", "B", true, 1, 5, itineraries(1), itineraries());
+    cache.put("A", "C", true, 1, 5, itineraries(2), itineraries());
+    assertNotNull(cache.get("A", "B", true, 1, 5));
+    cache.put("A", "D", true, 1, 5, itineraries(3), itineraries());
+    assertNull(cache.get("A", "C", true, 1, 5));
+    assertNotNull(cache.get("A", "B", true, 1, 5));
+    assertEquals(1, cache.evictions());
+  }
+
+  @Test
+  public void entriesExpireAndCanBeInvalidated() {
+    cache.put("A", "B", true, 1, 5, itineraries(1), itineraries());
+    now = 999;
+    assertNotNull(cache.get("A", "B", true, 1, 5));
+    now = 1000;
+    assertNull(cache.get("A", "B", true, 1, 5));
+    cache.put("A", "B", true, 1, 5, itineraries(1), itineraries());
+    cache.invalidate("A", "B", 1);
+    assertNull(cache.get("A", "B", true, 1, 5));
+    assertEquals(0, cache.size());
+  }
+
+  private static List<Query.Itinerary> itineraries(int... fids) {
+    List<Query.Itinerary> result = new ArrayList<>();
+    for (int fid : fids) {
+      Query.Itinerary itinerary = new Query.Itinerary();
+      itinerary.firstFlight = new Query.Flight();
+      itinerary.firstFlight.fid = fid;
+      result.add(itinerary);
+    }
+    return result;
+  }
+
+  private static List<Integer> fids(List<Query.Itinerary> itineraries) {
+    List<Integer> result = new ArrayList<>();
+    for (Query.Itinerary itinerary : itineraries) {
+      result.add(itinerary.firstFlight.fid);
+    }
+    return result;
+  }
+}
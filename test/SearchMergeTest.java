@@ -0,0 +1,70 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the streaming merge yields the same itineraries as sorting everything.
+ */
+public class SearchMergeTest {
+
+  @Test
+  public void mergeMatchesFullSort() throws SQLException {
+    Random random = new Random(414);
+    for (int round = 0; round < 200; round++) {
+      List<Query.Itinerary> direct = new ArrayList<>();
+      List<Query.Itinerary> indirect = new ArrayList<>();
+      int fid = 1;
+      for (int i = random.nextInt(8); i > 0; i--) {
+        direct.add(itinerary(flight(fid++, 200 + 10 * random.nextInt(4)), null));
+      }
+      for (int i = random.nextInt(12); i > 0; i--) {
+        indirect.add(itinerary(flight(random.nextInt(fid + 20), 100 + 10 * random.nextInt(3)),
+                flight(random.nextInt(fid + 20), 100 + 10 * random.nextInt(3))));
+      }
+      // the order SEARCH_N_DIRECT and SEARCH_INDIRECT return rows in
+      direct.sort(Comparator.<Query.Itinerary>comparingInt(it -> it.totalTime())
+              .thenComparingInt(it -> it.firstFlight.fid));
+      indirect.sort(Comparator.<Query.Itinerary>comparingInt(it -> it.totalTime())
+              .thenComparingInt(it -> it.firstFlight.fid).thenComparingInt(it -> it.secondFlight.fid));
+
+      List<Query.Itinerary> expected = new ArrayList<>(direct);
+      expected.addAll(indirect);
+      expected.sort(Query.Itinerary::compareTo);
+
+      int limit = direct.size() + indirect.size();
+      SearchMerge merge = new SearchMerge(SearchMerge.of(direct), SearchMerge.byTotalTime(SearchMerge.of(indirect)), limit);
+      List<Query.Itinerary> actual = new ArrayList<>();
+      for (Query.Itinerary it = merge.next(); it != null; it = merge.next()) {
+        actual.add(it);
+      }
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void stopsAtLimit() throws SQLException {
+    List<Query.Itinerary> direct = Arrays.asList(itinerary(flight(1, 100), null), itinerary(flight(2, 120), null));
+    SearchMerge merge = new SearchMerge(SearchMerge.of(direct), () -> null, 1);
+    assertEquals(1, merge.next().firstFlight.fid);
+    assertEquals(null, merge.next());
+  }
+
+  private static Query.Itinerary itinerary(Query.Flight first, Query.Flight second) {
+    Query.Itinerary result = new Query.Itinerary();
+    result.firstFlight = first;
+    result.secondFlight = second;
+    return result;
+  }
+
+  private static Query.Flight flight(int fid, int time) {
+    Query.Flight result = new Query.Flight();
+    result.fid = fid;
+    result.time = time;
+    return result;
+  }
+}
@@ -0,0 +1,119 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks session encoding, the session bound and idle eviction of the session store.
+ */
+public class SessionStoreTest {
+
+  @Test
+  public void searchResultsRoundTrip() {
+    SessionStore.Session session = new SessionStore(10, 60000).open();
+    session.setItineraries(Arrays.asList(itinerary(flight(7, 3, 100, 5), null),
+            itinerary(flight(8, 4, 50, 0), flight(9, 4, 70, 2))));
+    assertTrue(session.hasItinerary(1));
+    assertFalse(session.hasItinerary(2));
+    assertTrue(session.isDirect(0));
+    assertEquals(7, session.firstFid(0));
+    assertEquals(100, session.cost(0));
+    assertEquals(9, session.secondFid(1));
+    assertEquals(4, session.dayOfMonth(1));
+    assertEquals(120, session.cost(1));
+    assertFalse(session.hasCapacity(1));
+  }
+
+  @Test
+  public void loginDropsEarlierSearch() {
+    SessionStore.Session session = new SessionStore(10, 60000).open();
+    session.setItineraries(Collections.singletonList(itinerary(flight(7, 3, 100, 5), null)));
+    session.login("user1");
+    assertEquals("user1", session.username());
+    assertFalse(session.hasItinerary(0));
+  }
+
+  @Test
+  public void fullStoreEvictsLeastRecentlyUsed() throws InterruptedException {
+    SessionStore store = new SessionStore(2, 60000);
+    SessionStore.Session first = store.open();
+    Thread.sleep(2);
+    SessionStore.Session second = store.open();
+    Thread.sleep(2);
+    store.get(first.id);
+    store.open();
+    assertEquals(2, store.size());
+    assertNotNull(store.get(first.id));
+    assertNull(store.get(second.id));
+    assertEquals(1, store.evictions());
+  }
+
+  @Test
+  public void fullStoreEvictsABatchOfTheOldest() throws InterruptedException {
+    SessionStore store = new SessionStore(32, 60000);
+    List<SessionStore.Session> opened = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      opened.add(store.open());
+      Thread.sleep(1);
+    }
+    store.open();
+    // a sixteenth goes at once, so the next opens have room without another scan
+    assertEquals(31, store.size());
+    assertEquals(2, store.evictions());
+    assertNull(store.get(opened.get(0).id));
+    assertNull(store.get(opened.get(1).id));
+    assertNotNull(store.get(opened.get(2).id));
+    store.open();
+    assertEquals(2, store.evictions());
+  }
+
+  @Test
+  public void idleSessionsAreEvicted() throws InterruptedException {
+    SessionStore store = new SessionStore(10, 1);
+    SessionStore.Session session = store.open();
+    Thread.sleep(5);
+    assertNull(store.get(session.id));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void memoryEstimateGrowsWithResults() {
+    SessionStore store = new SessionStore(10, 60000);
+    SessionStore.Session session = store.open();
+    long empty = store.estimatedBytesPerSession();
+    session.setItineraries(Collections.nCopies(10, itinerary(flight(7, 3, 100, 5), null)));
+    assertEquals(empty + 10 * 6 * 4, store.estimatedBytesPerSession());
+  }
+
+  @Test
+  public void bookedDaysFollowLoginBookingsAndCancellations() {
+    SessionStore.Session session = new SessionStore(10, 60000).open();
+    session.login("user1", SessionStore.Session.dayBit(3) | SessionStore.Session.dayBit(31));
+    assertTrue(session.hasBookingOn(3));
+    assertTrue(session.hasBookingOn(31));
+    assertFalse(session.hasBookingOn(1));
+    session.bookedOn(1);
+    session.cancelledOn(3);
+    assertTrue(session.hasBookingOn(1));
+    assertFalse(session.hasBookingOn(3));
+  }
+
+  private static Query.Itinerary itinerary(Query.Flight first, Query.Flight second) {
+    Query.Itinerary result = new Query.Itinerary();
+    result.firstFlight = first;
+    result.secondFlight = second;
+    return result;
+  }
+
+  private static Query.Flight flight(int fid, int day, int price, int capacity) {
+    Query.Flight result = new Query.Flight();
+    result.fid = fid;
+    result.dayOfMonth = day;
+    result.price = price;
+    result.capacity = capacity;
+    return result;
+  }
+}
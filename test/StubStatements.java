@@ -0,0 +1,39 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+
+/**
+ * JDBC statements that need no database, for the tests of the statement wrappers.
+ */
+final class StubStatements {
+  private StubStatements() {
+  }
+
+  /**
+   * A statement whose queries return {@code rows} empty rows and whose updates report one changed
+   * row.
+   */
+  static PreparedStatement returning(int rows) {
+    InvocationHandler results = new InvocationHandler() {
+      int left = rows;
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("next") ? left-- > 0 : null;
+      }
+    };
+    return (PreparedStatement) Proxy.newProxyInstance(StubStatements.class.getClassLoader(),
+        new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "executeQuery":
+              return Proxy.newProxyInstance(StubStatements.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                  results);
+            case "executeUpdate":
+              return 1;
+            default:
+              return null;
+          }
+        });
+  }
+}